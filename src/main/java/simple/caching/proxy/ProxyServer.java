@@ -3,14 +3,22 @@ package simple.caching.proxy;
 import com.google.common.collect.Lists;
 import lombok.extern.slf4j.Slf4j;
 import simple.caching.proxy.cache.CacheHandler;
+import simple.caching.proxy.cache.CacheWarmer;
+import simple.caching.proxy.log.AccessLog;
+import simple.caching.proxy.prefetch.Prefetcher;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class ProxyServer implements Runnable {
@@ -19,6 +27,14 @@ public class ProxyServer implements Runnable {
     private ServerSocket serverSocket;
     private volatile boolean isRunning = false;
 
+    // Number of hottest keys kept in the popularity snapshot used for warm starts
+    private static final int WARM_START_KEYS = Integer.getInteger("proxy.warmStart.topKeys", 1000);
+    private final ScheduledExecutorService popularitySnapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "popularity-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public ProxyServer(int port) {
         // Start dynamic manager on a separate thread.
         new Thread(this).start();    // Starts overridden run() method at bottom
@@ -26,6 +42,7 @@ public class ProxyServer implements Runnable {
         try {
             CacheHandler.loadCacheSites();
             CacheHandler.loadBlockSites();
+            CacheHandler.loadCacheKeyRules();
         } catch (IOException e) {
             log.debug("Error loading previously cached sites file");
             e.printStackTrace();
@@ -34,6 +51,10 @@ public class ProxyServer implements Runnable {
             e.printStackTrace();
         }
 
+        startWarmStart();
+        AccessLog.start();
+        Prefetcher.start(RequestHandler::prefetch);
+
         try {
             // Create the Server Socket for the Proxy
             serverSocket = new ServerSocket(port);
@@ -55,6 +76,32 @@ public class ProxyServer implements Runnable {
     }
 
 
+    /**
+     * Preloads the objects that were hottest before the last shutdown in the background, while the
+     * listener is already accepting, and keeps the popularity snapshot up to date for the next start.
+     */
+    private void startWarmStart() {
+        try {
+            List<File> popularFiles = CacheHandler.loadPopularFiles();
+            log.debug("Warm start preloading {} cached files", popularFiles.size());
+            new CacheWarmer(Integer.getInteger("proxy.warmStart.threads", 4),
+                    Long.getLong("proxy.warmStart.maxBytes", 256L * 1024 * 1024))
+                    .startInBackground(popularFiles);
+        } catch (IOException e) {
+            log.error("Error loading cache popularity snapshot", e);
+        }
+
+        long interval = Long.getLong("proxy.warmStart.snapshotIntervalSec", 300L);
+        popularitySnapshots.scheduleAtFixedRate(() -> {
+            try {
+                CacheHandler.writePopularityToFile(WARM_START_KEYS);
+            } catch (IOException e) {
+                log.error("Error saving cache popularity snapshot", e);
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+
     public void listen() {
         while (isRunning) {
             try {
@@ -80,6 +127,7 @@ public class ProxyServer implements Runnable {
     private void closeServer() {
         log.debug("Closing Server..");
         isRunning = false;
+        writePopularitySnapshot();
         try {
             CacheHandler.writeCacheToFile();
 
@@ -111,6 +159,31 @@ public class ProxyServer implements Runnable {
             e.printStackTrace();
         }
 
+        Prefetcher.stop();
+
+        // Flush pending access records
+        AccessLog.stop();
+
+    }
+
+
+    /**
+     * Saves the final popularity snapshot once any scheduled snapshot has finished with the temp file.
+     * Failures are logged here so they never stop the cache and block list from being saved.
+     */
+    private void writePopularitySnapshot() {
+        popularitySnapshots.shutdownNow();
+        try {
+            if (!popularitySnapshots.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.debug("Scheduled popularity snapshot still running, skipping final snapshot");
+                return;
+            }
+            CacheHandler.writePopularityToFile(WARM_START_KEYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error("Error saving cache popularity snapshot", e);
+        }
     }
 
 
@@ -118,6 +191,7 @@ public class ProxyServer implements Runnable {
      * Creates a management interface which can dynamically update the proxy configurations
      * blocked  : Lists currently blocked sites
      * cached	: Lists currently cached sites
+     * prefetch	: Prints prefetcher statistics
      * close	: Closes the proxy server
      * *		: Adds * to the list of blocked sites
      */
@@ -127,12 +201,14 @@ public class ProxyServer implements Runnable {
 
         String command;
         while (isRunning) {
-            log.debug("Enter new site to block, or type \"blocked\" to see blocked sites, \"cached\" to see cached sites, or \"close\" to close server.");
+            log.debug("Enter new site to block, or type \"blocked\" to see blocked sites, \"cached\" to see cached sites, \"prefetch\" to see prefetch stats, or \"close\" to close server.");
             command = scanner.nextLine();
             if (command.toLowerCase().equals("blocked")) {
                 CacheHandler.printCurrentBlockedSites();
             } else if (command.toLowerCase().equals("cached")) {
                 CacheHandler.printCurrentCachedSites();
+            } else if (command.toLowerCase().equals("prefetch")) {
+                Prefetcher.printStats();
             } else if (command.equals("close")) {
                 isRunning = false;
                 closeServer();
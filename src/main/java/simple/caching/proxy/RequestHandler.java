@@ -1,19 +1,63 @@
 package simple.caching.proxy;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 import lombok.extern.slf4j.Slf4j;
 import simple.caching.proxy.cache.CacheHandler;
+import simple.caching.proxy.cache.FailureClass;
+import simple.caching.proxy.cache.LargeObjectSender;
+import simple.caching.proxy.log.AccessLog;
+import simple.caching.proxy.log.CacheStatus;
+import simple.caching.proxy.prefetch.LinkExtractor;
+import simple.caching.proxy.prefetch.Prefetcher;
+import simple.caching.proxy.upstream.FairScheduler;
+import simple.caching.proxy.upstream.ThrottledInputStream;
+import simple.caching.proxy.upstream.UpstreamScheduler;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Slf4j
 public class RequestHandler implements Runnable {
 
+    // Give up on unreachable origins quickly so the failure can be negatively cached
+    private static final int ORIGIN_CONNECT_TIMEOUT = 5000;
+    private static final int ORIGIN_READ_TIMEOUT = 10000;
+    // How long a miss waits for another thread already fetching the same key before fetching it itself
+    private static final long PENDING_FETCH_WAIT_MS = ORIGIN_CONNECT_TIMEOUT + ORIGIN_READ_TIMEOUT;
+    // Client request headers passed on to the origin, and so the only ones a Vary response can depend on
+    private static final List<String> FORWARDED_HEADERS = ImmutableList.of("accept", "accept-language");
+    // Cached files at least this big are streamed in chunks instead of being read onto the heap
+    private static final long LARGE_OBJECT_BYTES = Long.getLong("proxy.largeObject.thresholdBytes", 1024L * 1024);
+    // Large files requested fewer times than this are treated as one-shot and kept out of the page cache
+    private static final int LARGE_OBJECT_HOT_REQUESTS = Integer.getInteger("proxy.largeObject.hotRequests", 3);
+
     Socket clientSocket;
     BufferedReader proxyToClientBr;
     BufferedWriter proxyToClientBw;
+    // Every byte sent to the client goes through this stream so the access log can report it
+    CountingOutputStream proxyToClientOs;
+    CacheStatus cacheStatus = CacheStatus.MISS;
+    // Set when fetching on behalf of the prefetcher, so fetched pages are not scanned for further links
+    boolean prefetching;
 
 
     public RequestHandler(Socket clientSocket) {
@@ -21,28 +65,46 @@ public class RequestHandler implements Runnable {
         try {
             this.clientSocket.setSoTimeout(2000);
             proxyToClientBr = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            proxyToClientBw = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
+            proxyToClientOs = new CountingOutputStream(clientSocket.getOutputStream());
+            proxyToClientBw = new BufferedWriter(new OutputStreamWriter(proxyToClientOs));
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("Error opening client streams", e);
         }
     }
 
+    /**
+     * Creates a handler with no client, whose response is written to the given stream.
+     */
+    RequestHandler(OutputStream responseSink) {
+        proxyToClientOs = new CountingOutputStream(responseSink);
+        proxyToClientBw = new BufferedWriter(new OutputStreamWriter(proxyToClientOs));
+    }
+
+    /**
+     * Fetches a URL into the cache with nobody waiting on the response. Used by the {@link Prefetcher}.
+     */
+    static void prefetch(String urlString) {
+        RequestHandler handler = new RequestHandler(ByteStreams.nullOutputStream());
+        handler.prefetching = true;
+        handler.sendNonCachedToClient(urlString, CacheHandler.getCacheKey(urlString), Collections.emptyMap());
+    }
+
 
     @Override
     public void run() {
+        long startNanos = System.nanoTime();
 
         // Get Request from client
         String requestString;
         try {
             requestString = proxyToClientBr.readLine();
         } catch (IOException e) {
-            e.printStackTrace();
-            log.debug("Error reading request from client");
+            log.error("Error reading request from client", e);
             return;
         }
 
         // Parse out URL
-        log.debug("Request Received " + requestString);
+        log.debug("Request Received {}", requestString);
         // Get the Request type
         String request = requestString.substring(0, requestString.indexOf(' '));
 
@@ -59,9 +121,19 @@ public class RequestHandler implements Runnable {
         }
 
 
+        try {
+            handleRequest(request, urlString);
+        } finally {
+            long bytesSent = proxyToClientOs == null ? 0 : proxyToClientOs.getCount();
+            AccessLog.record(request, urlString, cacheStatus, bytesSent, (System.nanoTime() - startNanos) / 1000);
+        }
+    }
+
+    private void handleRequest(String request, String urlString) {
         // Check if site is blocked
         if (CacheHandler.isBlocked(urlString)) {
-            log.debug("Blocked site requested : " + urlString);
+            log.debug("Blocked site requested : {}", urlString);
+            cacheStatus = CacheStatus.BLOCKED;
             blockedSiteRequested();
             return;
         }
@@ -69,23 +141,35 @@ public class RequestHandler implements Runnable {
 
         // Check request type
         if (request.equals("CONNECT")) {
-            log.debug("HTTPS Request for : " + urlString + "\n");
+            log.debug("HTTPS Request for : {}", urlString);
+            cacheStatus = CacheStatus.TUNNEL;
             handleHTTPSRequest(urlString);
         } else {
+            Map<String, String> requestHeaders = readRequestHeaders();
+            String cacheKey = CacheHandler.getCacheKey(urlString);
+            CacheHandler.recordAccess(cacheKey);
+
             // Check if we have a cached copy
             File file;
-            if ((file = CacheHandler.getCachedPage(urlString)) != null) {
-                log.debug("Cached Copy found for : " + urlString + "\n");
-                sendCachedPageToClient(file);
+            int negativeStatus;
+            if ((file = CacheHandler.getCachedPage(cacheKey, requestHeaders)) != null) {
+                log.debug("Cached Copy found for : {}", cacheKey);
+                cacheStatus = CacheStatus.HIT;
+                Prefetcher.recordHit(cacheKey);
+                sendCachedPageToClient(file, cacheKey);
+            } else if ((negativeStatus = CacheHandler.getNegativeCachedStatus(cacheKey)) != -1) {
+                log.debug("Negative cached {} for : {}", negativeStatus, cacheKey);
+                cacheStatus = CacheStatus.NEGATIVE_HIT;
+                sendErrorToClient(negativeStatus);
             } else {
-                log.debug("HTTP GET for : " + urlString + "\n");
-                sendNonCachedToClient(urlString);
+                log.debug("HTTP GET for : {}", urlString);
+                sendNonCachedToClient(urlString, cacheKey, requestHeaders);
             }
         }
     }
 
 
-    private void sendCachedPageToClient(File cachedFile) {
+    private void sendCachedPageToClient(File cachedFile, String cacheKey) {
         // Read from File containing cached web page
         try {
             // If file is an image write data to client using buffered image.
@@ -93,13 +177,25 @@ public class RequestHandler implements Runnable {
 
             // Response that will be sent to the server
             String response;
-            if ((fileExtension.contains(".png")) || fileExtension.contains(".jpg") ||
+            long fileLength = cachedFile.length();
+            if (fileLength >= LARGE_OBJECT_BYTES) {
+                // Large file of any type: send the stored bytes as they are, chunk by chunk
+                response = "HTTP/1.0 200 OK\n" +
+                        "Content-Length: " + fileLength + "\n" +
+                        "Proxy-agent: ProxyServer/1.0\n" +
+                        "\r\n";
+                proxyToClientBw.write(response);
+                proxyToClientBw.flush();
+
+                boolean oneShot = !CacheHandler.isHot(cacheKey, LARGE_OBJECT_HOT_REQUESTS);
+                new LargeObjectSender(largeObjectChunkBytes()).send(cachedFile, proxyToClientOs, oneShot);
+            } else if ((fileExtension.contains(".png")) || fileExtension.contains(".jpg") ||
                     fileExtension.contains(".jpeg") || fileExtension.contains(".gif")) {
                 // Read in image from storage
                 BufferedImage image = ImageIO.read(cachedFile);
 
                 if (image == null) {
-                    log.debug("Image " + cachedFile.getName() + " was null");
+                    log.debug("Image {} was null", cachedFile.getName());
                     response = "HTTP/1.0 404 NOT FOUND \n" +
                             "Proxy-agent: ProxyServer/1.0\n" +
                             "\r\n";
@@ -111,7 +207,7 @@ public class RequestHandler implements Runnable {
                             "\r\n";
                     proxyToClientBw.write(response);
                     proxyToClientBw.flush();
-                    ImageIO.write(image, fileExtension.substring(1), clientSocket.getOutputStream());
+                    ImageIO.write(image, fileExtension.substring(1), proxyToClientOs);
                 }
             }
 
@@ -141,15 +237,103 @@ public class RequestHandler implements Runnable {
             }
 
         } catch (IOException e) {
-            log.debug("Error Sending Cached file to client");
-            e.printStackTrace();
+            cacheStatus = CacheStatus.ERROR;
+            log.error("Error Sending Cached file to client", e);
         }
     }
 
 
-    private void sendNonCachedToClient(String urlString) {
+    /**
+     * Sizes large object chunks to the client's socket send buffer, so each chunk is read only once
+     * the client has drained the previous one.
+     */
+    private int largeObjectChunkBytes() {
+        int chunkBytes = 256 * 1024;
+        try {
+            if (clientSocket != null) {
+                chunkBytes = clientSocket.getSendBufferSize();
+            }
+        } catch (SocketException e) {
+            log.debug("Could not read client send buffer size", e);
+        }
+        return Math.min(Math.max(chunkBytes, 64 * 1024), 1024 * 1024);
+    }
 
+    /**
+     * Reads the remaining request headers up to the blank line, keyed by lower case name.
+     */
+    private Map<String, String> readRequestHeaders() {
+        Map<String, String> headers = new HashMap<>();
         try {
+            String line;
+            while ((line = proxyToClientBr.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Error reading request headers", e);
+        }
+        return headers;
+    }
+
+    private void sendNonCachedToClient(String urlString, String cacheKey, Map<String, String> requestHeaders) {
+        File fileToCache = null;
+        File cachedFile = null;
+        BufferedWriter fileToCacheBW = null;
+        boolean ownsFetch = false;
+        String hostPort = null;
+        FairScheduler.Permit upstreamPermit = null;
+        long originBytes = 0;
+        // Whether the origin sent a status line, and whether we already sent ours to the client
+        boolean originResponded = false;
+        boolean responseStarted = false;
+
+        try {
+            URL remoteURL = new URL(urlString);
+
+            // Fail fast if this origin has been refusing connections or timing out
+            hostPort = hostPortOf(remoteURL);
+            int hostStatus = CacheHandler.getUnavailableHostStatus(hostPort);
+            if (hostStatus != -1) {
+                log.debug("Origin {} unavailable, answering {}", hostPort, hostStatus);
+                cacheStatus = CacheStatus.NEGATIVE_HIT;
+                sendErrorToClient(hostStatus);
+                return;
+            }
+
+            // Only one thread fetches and caches a key at a time; the others wait for it and use its cache entry
+            CompletableFuture<File> pendingFetch = CacheHandler.startFetch(cacheKey);
+            ownsFetch = pendingFetch == null;
+            if (!ownsFetch) {
+                if (prefetching) {
+                    return;
+                }
+                File fetched = awaitPendingFetch(pendingFetch, cacheKey, requestHeaders);
+                if (fetched != null) {
+                    log.debug("Served {} from a concurrent fetch", cacheKey);
+                    cacheStatus = CacheStatus.HIT;
+                    sendCachedPageToClient(fetched, cacheKey);
+                    return;
+                }
+                int negativeStatus = CacheHandler.getNegativeCachedStatus(cacheKey);
+                if (negativeStatus != -1) {
+                    cacheStatus = CacheStatus.NEGATIVE_HIT;
+                    sendErrorToClient(negativeStatus);
+                    return;
+                }
+                // Not cached for this request after all, so fetch it without touching the cache
+            }
+
+            // Wait for this origin's turn so a slow origin cannot hold every upstream slot
+            upstreamPermit = UpstreamScheduler.acquire(remoteURL.getHost().toLowerCase(), -1, prefetching);
+            if (upstreamPermit == null) {
+                log.debug("No upstream slot for {} in time", hostPort);
+                cacheStatus = CacheStatus.ERROR;
+                sendErrorToClient(503);
+                return;
+            }
 
             // Compute a logical file name as per schema
             // This allows the files on stored on disk to resemble that of the URL it was taken from
@@ -180,41 +364,44 @@ public class RequestHandler implements Runnable {
             fileName = fileName + fileExtension;
 
 
-            // Attempt to create File to cache to
-            boolean caching = true;
-            File fileToCache = null;
-            BufferedWriter fileToCacheBW = null;
-
-            try {
-                // Create File to cache
-                fileToCache = new File("cached/" + fileName);
-
-                if (!fileToCache.exists()) {
-                    fileToCache.createNewFile();
-                }
-
-                // Create Buffered output stream to write to cached copy of file
-                fileToCacheBW = new BufferedWriter(new FileWriter(fileToCache));
-            } catch (IOException e) {
-                log.debug("Couldn't cache: " + fileName);
-                caching = false;
-                e.printStackTrace();
-            } catch (NullPointerException e) {
-                log.debug("NPE opening file");
-            }
+            boolean caching = ownsFetch;
+            List<String> vary = ImmutableList.of();
 
 
             // Check if file is an image
-            URL remoteURL = new URL(urlString);
             if ((fileExtension.contains(".png")) || fileExtension.contains(".jpg") ||
                     fileExtension.contains(".jpeg") || fileExtension.contains(".gif")) {
-                // Create the URL
-                BufferedImage image = ImageIO.read(remoteURL);
+                // Create a connection to remote server
+                HttpURLConnection proxyToServerCon = (HttpURLConnection) remoteURL.openConnection();
+                proxyToServerCon.setUseCaches(false);
+                proxyToServerCon.setConnectTimeout(ORIGIN_CONNECT_TIMEOUT);
+                proxyToServerCon.setReadTimeout(ORIGIN_READ_TIMEOUT);
+
+                // Remember 404/410/5xx so retries don't go back to the origin
+                int responseCode = proxyToServerCon.getResponseCode();
+                originResponded = true;
+                CacheHandler.addHostSuccess(hostPort);
+                if (FailureClass.forStatusCode(responseCode) != null) {
+                    log.debug("Origin answered {} for {}", responseCode, urlString);
+                    CacheHandler.addNegativeCachedStatus(cacheKey, responseCode);
+                    sendErrorToClient(responseCode);
+                    proxyToServerCon.disconnect();
+                    return;
+                }
+
+                BufferedImage image;
+                try (ThrottledInputStream proxyToServerIS =
+                             new ThrottledInputStream(proxyToServerCon.getInputStream(), upstreamPermit)) {
+                    image = ImageIO.read(proxyToServerIS);
+                    originBytes = proxyToServerIS.getCount();
+                }
 
                 if (image != null) {
                     // Cache the image to disk
-                    assert fileToCache != null;
-                    ImageIO.write(image, fileExtension.substring(1), fileToCache);
+                    if (caching) {
+                        fileToCache = createCacheFile(fileName);
+                        caching = fileToCache != null && writeImageToCache(image, fileExtension.substring(1), fileToCache);
+                    }
 
                     // Send response code to client
                     String line = "HTTP/1.0 200 OK\n" +
@@ -222,19 +409,16 @@ public class RequestHandler implements Runnable {
                             "\r\n";
                     proxyToClientBw.write(line);
                     proxyToClientBw.flush();
+                    responseStarted = true;
 
                     // Send them the image data
-                    ImageIO.write(image, fileExtension.substring(1), clientSocket.getOutputStream());
+                    ImageIO.write(image, fileExtension.substring(1), proxyToClientOs);
 
                     // No image received from remote server
                 } else {
-                    log.debug("Sending 404 to client as image wasn't received from server"
-                            + fileName);
-                    String error = "HTTP/1.0 404 NOT FOUND\n" +
-                            "Proxy-agent: ProxyServer/1.0\n" +
-                            "\r\n";
-                    proxyToClientBw.write(error);
-                    proxyToClientBw.flush();
+                    log.debug("Sending 404 to client as image wasn't received from server {}", fileName);
+                    CacheHandler.addNegativeCachedStatus(cacheKey, 404);
+                    sendErrorToClient(404);
                     return;
                 }
             }
@@ -250,9 +434,56 @@ public class RequestHandler implements Runnable {
                 proxyToServerCon.setRequestProperty("Content-Language", "en-US");
                 proxyToServerCon.setUseCaches(false);
                 proxyToServerCon.setDoOutput(true);
+                proxyToServerCon.setConnectTimeout(ORIGIN_CONNECT_TIMEOUT);
+                proxyToServerCon.setReadTimeout(ORIGIN_READ_TIMEOUT);
+                for (String header : FORWARDED_HEADERS) {
+                    String value = requestHeaders.get(header);
+                    if (value != null) {
+                        proxyToServerCon.setRequestProperty(header, value);
+                    }
+                }
+
+                // Remember 404/410/5xx so retries don't go back to the origin
+                int responseCode = proxyToServerCon.getResponseCode();
+                originResponded = true;
+                CacheHandler.addHostSuccess(hostPort);
+                if (FailureClass.forStatusCode(responseCode) != null) {
+                    log.debug("Origin answered {} for {}", responseCode, urlString);
+                    CacheHandler.addNegativeCachedStatus(cacheKey, responseCode);
+                    sendErrorToClient(responseCode);
+                    proxyToServerCon.disconnect();
+                    return;
+                }
+
+                // Responses that vary by request headers are stored as separate variants of the key
+                vary = parseVary(proxyToServerCon.getHeaderField("Vary"));
+                if (vary == null) {
+                    caching = false;
+                } else if (caching) {
+                    if (!vary.isEmpty()) {
+                        fileName = variantFileName(fileName, CacheHandler.getVariantKey(cacheKey, vary, requestHeaders));
+                    }
+                    fileToCache = createCacheFile(fileName);
+                    caching = fileToCache != null;
+                }
+
+                // Create Buffered output stream to write to cached copy of file
+                if (caching) {
+                    fileToCacheBW = openCacheWriter(fileToCache);
+                    caching = fileToCacheBW != null;
+                }
+
+                // Queue the subresources of HTML pages for prefetching while the page streams through
+                LinkExtractor linkExtractor = null;
+                String contentType = proxyToServerCon.getContentType();
+                if (!prefetching && Prefetcher.isEnabled() && contentType != null && contentType.contains("text/html")) {
+                    linkExtractor = Prefetcher.newLinkExtractor(remoteURL);
+                }
 
                 // Create Buffered Reader from remote Server
-                BufferedReader proxyToServerBR = new BufferedReader(new InputStreamReader(proxyToServerCon.getInputStream()));
+                ThrottledInputStream proxyToServerIS =
+                        new ThrottledInputStream(proxyToServerCon.getInputStream(), upstreamPermit);
+                BufferedReader proxyToServerBR = new BufferedReader(new InputStreamReader(proxyToServerIS));
 
 
                 // Send success code to client
@@ -260,6 +491,7 @@ public class RequestHandler implements Runnable {
                         "Proxy-agent: ProxyServer/1.0\n" +
                         "\r\n";
                 proxyToClientBw.write(line);
+                responseStarted = true;
 
 
                 // Read from input stream between proxy and remote server
@@ -267,38 +499,297 @@ public class RequestHandler implements Runnable {
                     // Send on data to client
                     proxyToClientBw.write(line);
 
+                    if (linkExtractor != null) {
+                        linkExtractor.feed(line);
+                    }
+
                     // Write to our cached copy of the file
                     if (caching) {
-                        assert fileToCacheBW != null;
-                        fileToCacheBW.write(line);
+                        caching = writeToCache(fileToCacheBW, fileToCache, line);
                     }
                 }
 
                 // Ensure all data is sent by this point
                 proxyToClientBw.flush();
+                originBytes = proxyToServerIS.getCount();
 
                 // Close Down Resources
                 proxyToServerBR.close();
             }
 
 
+            // Ensure data written and add to our cached hash maps
+            if (fileToCacheBW != null) {
+                caching = closeCacheWriter(fileToCacheBW, fileToCache) && caching;
+            }
             if (caching) {
-                // Ensure data written and add to our cached hash maps
-                assert fileToCacheBW != null;
-                fileToCacheBW.flush();
-                CacheHandler.addCachedPage(urlString, fileToCache);
+                cachedFile = commitCacheFile(fileToCache, fileName);
+            }
+            if (cachedFile != null) {
+                if (vary.isEmpty()) {
+                    CacheHandler.addCachedPage(cacheKey, cachedFile);
+                } else {
+                    CacheHandler.addCachedVariant(cacheKey, vary, requestHeaders, cachedFile);
+                }
+            }
+
+            if (proxyToClientBw != null) {
+                proxyToClientBw.close();
+            }
+        } catch (InterruptedException e) {
+            // Interrupted while queued for an upstream slot, e.g. the prefetcher shutting down
+            Thread.currentThread().interrupt();
+            cacheStatus = CacheStatus.ERROR;
+            discardCacheFile(fileToCacheBW, fileToCache);
+            if (!responseStarted) {
+                sendErrorToClient(503);
+            }
+        } catch (Exception e) {
+            cacheStatus = CacheStatus.ERROR;
+            discardCacheFile(fileToCacheBW, fileToCache);
+            FailureClass failureClass = classifyFailure(e);
+            if (responseStarted) {
+                // A 200 and part of the body are already out, so an error status can't be sent any more.
+                // The origin did answer, so this says nothing about the host's health either.
+                log.debug("Fetch of {} failed mid-response", urlString, e);
+                closeClientConnection();
+            } else if (failureClass == FailureClass.NOT_FOUND) {
+                CacheHandler.addNegativeCachedStatus(cacheKey, 404);
+                sendErrorToClient(404);
+            } else if (failureClass == FailureClass.CONNECT_FAILURE
+                    || (failureClass == FailureClass.TIMEOUT && !originResponded)) {
+                log.debug("Origin {} failed with {}", hostPort, failureClass);
+                CacheHandler.addHostFailure(hostPort, failureClass);
+                sendErrorToClient(failureClass.getDefaultStatusCode());
+            } else if (failureClass == FailureClass.TIMEOUT) {
+                // Slow body from an origin that did answer: fail this request only
+                log.debug("Origin {} timed out sending {}", hostPort, urlString);
+                sendErrorToClient(failureClass.getDefaultStatusCode());
+            } else {
+                log.error("Error fetching {}", urlString, e);
+            }
+        } finally {
+            if (ownsFetch) {
+                CacheHandler.finishFetch(cacheKey, cachedFile);
+            }
+            if (upstreamPermit != null) {
+                upstreamPermit.release(originBytes);
+            }
+        }
+    }
+
+    /**
+     * Waits for another thread's fetch of the key to finish.
+     *
+     * @return the cached file matching this request, or null if the other fetch did not cache one in time
+     */
+    private File awaitPendingFetch(CompletableFuture<File> pendingFetch, String cacheKey,
+                                   Map<String, String> requestHeaders) throws InterruptedException {
+        try {
+            pendingFetch.get(PENDING_FETCH_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            log.debug("Gave up waiting for the fetch of {} in progress", cacheKey);
+            return null;
+        }
+        // The other fetch may have cached a different variant, so look up the one this request needs
+        return CacheHandler.getCachedPage(cacheKey, requestHeaders);
+    }
+
+    /**
+     * Maps an exception raised while contacting an origin to the negative cache entry it should create.
+     * ImageIO wraps the underlying exception, so the whole cause chain is inspected.
+     */
+    static FailureClass classifyFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                return FailureClass.TIMEOUT;
             }
+            if (cause instanceof ConnectException || cause instanceof UnknownHostException
+                    || cause instanceof NoRouteToHostException) {
+                return FailureClass.CONNECT_FAILURE;
+            }
+            if (cause instanceof FileNotFoundException) {
+                return FailureClass.NOT_FOUND;
+            }
+        }
+        return null;
+    }
 
-            // Close down resources
+    /**
+     * Parses a Vary response header into the forwarded request headers it names.
+     *
+     * @return lower case header names, empty if the response does not vary, or null for "Vary: *"
+     */
+    static List<String> parseVary(String varyHeader) {
+        List<String> vary = new ArrayList<>();
+        if (varyHeader == null) {
+            return vary;
+        }
+        for (String name : varyHeader.split(",")) {
+            name = name.trim().toLowerCase(Locale.ROOT);
+            if (name.equals("*")) {
+                return null;
+            }
+            // Headers the origin never saw cannot have changed its response
+            if (FORWARDED_HEADERS.contains(name) && !vary.contains(name)) {
+                vary.add(name);
+            }
+        }
+        return vary;
+    }
+
+    private static String variantFileName(String fileName, String variantKey) {
+        String suffix = "_v" + Hashing.murmur3_128().hashString(variantKey, StandardCharsets.UTF_8).toString().substring(0, 16);
+        int extensionIndex = fileName.lastIndexOf('.');
+        return extensionIndex < 0 ? fileName + suffix
+                : fileName.substring(0, extensionIndex) + suffix + fileName.substring(extensionIndex);
+    }
+
+    /**
+     * Creates a temp file in the cache directory for a response to be written to. Each fetch gets its own file,
+     * so a fetch that fails can't truncate or delete a file another fetch has already put in the cache.
+     */
+    private File createCacheFile(String fileName) {
+        try {
+            return Files.createTempFile(Paths.get("cached"), "fetch", ".tmp").toFile();
+        } catch (IOException e) {
+            log.error("Couldn't cache: {}", fileName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Moves a completely written temp file to its place in the cache. Requests already reading an older
+     * copy keep reading that one.
+     *
+     * @return the cached file, or null if the temp file could not be moved
+     */
+    private File commitCacheFile(File fileToCache, String fileName) {
+        File cachedFile = new File("cached/" + fileName);
+        try {
+            Files.move(fileToCache.toPath(), cachedFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return cachedFile;
+        } catch (IOException e) {
+            log.error("Couldn't cache: {}", fileName, e);
+            fileToCache.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Opens the cache file for writing. Like the other cache file helpers below, a failure only stops the
+     * response from being cached: the client still gets it, and classifyFailure never sees the exception,
+     * so a local disk problem is not mistaken for the origin failing.
+     *
+     * @return the writer, or null if the file could not be opened
+     */
+    private BufferedWriter openCacheWriter(File fileToCache) {
+        try {
+            return new BufferedWriter(new FileWriter(fileToCache));
+        } catch (IOException e) {
+            log.error("Couldn't cache: {}", fileToCache, e);
+            fileToCache.delete();
+            return null;
+        }
+    }
+
+    /**
+     * @return false if the line could not be written, in which case the cache file has been discarded
+     */
+    private boolean writeToCache(BufferedWriter fileToCacheBW, File fileToCache, String line) {
+        try {
+            fileToCacheBW.write(line);
+            return true;
+        } catch (IOException e) {
+            log.error("Error writing cache file {}", fileToCache, e);
+            discardCacheFile(fileToCacheBW, fileToCache);
+            return false;
+        }
+    }
+
+    private boolean closeCacheWriter(BufferedWriter fileToCacheBW, File fileToCache) {
+        try {
+            fileToCacheBW.close();
+            return true;
+        } catch (IOException e) {
+            log.error("Error writing cache file {}", fileToCache, e);
+            fileToCache.delete();
+            return false;
+        }
+    }
+
+    private boolean writeImageToCache(BufferedImage image, String format, File fileToCache) {
+        try {
+            if (ImageIO.write(image, format, fileToCache)) {
+                return true;
+            }
+            log.debug("No image writer for {}, not caching {}", format, fileToCache);
+        } catch (IOException e) {
+            log.error("Error writing cache file {}", fileToCache, e);
+        }
+        fileToCache.delete();
+        return false;
+    }
+
+    static String hostPortOf(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getHost().toLowerCase() + ":" + port;
+    }
+
+    private void discardCacheFile(BufferedWriter fileToCacheBW, File fileToCache) {
+        try {
             if (fileToCacheBW != null) {
                 fileToCacheBW.close();
             }
+        } catch (IOException e) {
+            log.error("Error closing cache file", e);
+        }
+        if (fileToCache != null) {
+            fileToCache.delete();
+        }
+    }
 
-            if (proxyToClientBw != null) {
+    private void closeClientConnection() {
+        try {
+            if (clientSocket != null) {
+                clientSocket.close();
+            } else {
                 proxyToClientBw.close();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            log.debug("Error closing client connection", e);
+        }
+    }
+
+    private void sendErrorToClient(int statusCode) {
+        String reason;
+        switch (statusCode) {
+            case 404:
+                reason = "NOT FOUND";
+                break;
+            case 410:
+                reason = "GONE";
+                break;
+            case 502:
+                reason = "BAD GATEWAY";
+                break;
+            case 503:
+                reason = "SERVICE UNAVAILABLE";
+                break;
+            case 504:
+                reason = "GATEWAY TIMEOUT";
+                break;
+            default:
+                reason = "ERROR";
+        }
+        try {
+            proxyToClientBw.write("HTTP/1.0 " + statusCode + " " + reason + "\n" +
+                    "Proxy-agent: ProxyServer/1.0\n" +
+                    "\r\n");
+            proxyToClientBw.flush();
+        } catch (IOException e) {
+            log.error("Error sending {} to client", statusCode, e);
         }
     }
 
@@ -308,6 +799,15 @@ public class RequestHandler implements Runnable {
         String[] pieces = url.split(":");
         url = pieces[0];
         int port = Integer.parseInt(pieces[1]);
+        String hostPort = url.toLowerCase() + ":" + port;
+
+        int hostStatus = CacheHandler.getUnavailableHostStatus(hostPort);
+        if (hostStatus != -1) {
+            log.debug("Origin {} unavailable, answering {}", hostPort, hostStatus);
+            cacheStatus = CacheStatus.NEGATIVE_HIT;
+            sendErrorToClient(hostStatus);
+            return;
+        }
 
         try {
             // Only first line of HTTPS request has been read at this point (CONNECT *)
@@ -316,11 +816,24 @@ public class RequestHandler implements Runnable {
                 proxyToClientBr.readLine();
             }
 
-            // Get actual IP associated with this URL through DNS
-            InetAddress address = InetAddress.getByName(url);
+            Socket proxyToServerSocket = new Socket();
+            try {
+                // Get actual IP associated with this URL through DNS
+                InetAddress address = InetAddress.getByName(url);
 
-            // Open a socket to the remote server
-            Socket proxyToServerSocket = new Socket(address, port);
+                // Open a socket to the remote server
+                proxyToServerSocket.connect(new InetSocketAddress(address, port), ORIGIN_CONNECT_TIMEOUT);
+            } catch (IOException e) {
+                FailureClass failureClass = e instanceof SocketTimeoutException
+                        ? FailureClass.TIMEOUT : FailureClass.CONNECT_FAILURE;
+                log.debug("Origin {} failed with {}", hostPort, failureClass);
+                CacheHandler.addHostFailure(hostPort, failureClass);
+                cacheStatus = CacheStatus.ERROR;
+                proxyToServerSocket.close();
+                sendErrorToClient(failureClass.getDefaultStatusCode());
+                return;
+            }
+            CacheHandler.addHostSuccess(hostPort);
             proxyToServerSocket.setSoTimeout(5000);
 
             // Send Connection established to the client
@@ -358,16 +871,16 @@ public class RequestHandler implements Runnable {
                 do {
                     read = proxyToServerSocket.getInputStream().read(buffer);
                     if (read > 0) {
-                        clientSocket.getOutputStream().write(buffer, 0, read);
+                        proxyToClientOs.write(buffer, 0, read);
                         if (proxyToServerSocket.getInputStream().available() < 1) {
-                            clientSocket.getOutputStream().flush();
+                            proxyToClientOs.flush();
                         }
                     }
                 } while (read >= 0);
             } catch (SocketTimeoutException ignored) {
 
             } catch (IOException e) {
-                e.printStackTrace();
+                log.error("Error relaying HTTPS data to client", e);
             }
 
 
@@ -387,29 +900,29 @@ public class RequestHandler implements Runnable {
             String line = "HTTP/1.0 504 Timeout Occurred after 10s\n" +
                     "User-Agent: ProxyServer/1.0\n" +
                     "\r\n";
+            cacheStatus = CacheStatus.ERROR;
             try {
                 proxyToClientBw.write(line);
                 proxyToClientBw.flush();
             } catch (IOException ioe) {
-                ioe.printStackTrace();
+                log.error("Error sending timeout to client", ioe);
             }
         } catch (Exception e) {
-            log.debug("Error on HTTPS : " + urlString);
-            e.printStackTrace();
+            cacheStatus = CacheStatus.ERROR;
+            log.error("Error on HTTPS : {}", urlString, e);
         }
     }
 
     private void blockedSiteRequested() {
         try {
-            BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
+            BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(proxyToClientOs));
             String line = "HTTP/1.0 403 Access Forbidden \n" +
                     "User-Agent: ProxyServer/1.0\n" +
                     "\r\n";
             bufferedWriter.write(line);
             bufferedWriter.flush();
         } catch (IOException e) {
-            log.debug("Error writing to client when requested a blocked site");
-            e.printStackTrace();
+            log.error("Error writing to client when requested a blocked site", e);
         }
     }
 
@@ -447,8 +960,7 @@ public class RequestHandler implements Runnable {
             } catch (SocketTimeoutException ste) {
                 // TODO: handle exception
             } catch (IOException e) {
-                log.debug("Proxy to client HTTPS read timed out");
-                e.printStackTrace();
+                log.error("Proxy to client HTTPS read timed out", e);
             }
         }
     }
@@ -5,14 +5,44 @@ import lombok.experimental.UtilityClass;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 @UtilityClass
 @Slf4j
 public class CacheHandler {
 
-    private HashMap<String, File> cachedSites = Maps.newHashMap();
+    // Read by request, prefetch and warm start threads while misses add to it
+    private ConcurrentHashMap<String, File> cachedSites = new ConcurrentHashMap<>();
     private HashMap<String, String> blockedSites = Maps.newHashMap();
+    // Primary cache key -> request header names (lower case) its cached variants are selected by
+    private ConcurrentHashMap<String, ArrayList<String>> varyHeaders = new ConcurrentHashMap<>();
+    // Primary cache key -> keys of its stored variants, so variants are found without scanning cachedSites
+    private final ConcurrentHashMap<String, Set<String>> variantKeys = new ConcurrentHashMap<>();
+    // Cache key -> origin fetch in progress, so each object is fetched and written by one thread at a time
+    private final ConcurrentHashMap<String, CompletableFuture<File>> fetchesInProgress = new ConcurrentHashMap<>();
+    private final CachePopularity popularity = new CachePopularity();
+    // Keys of the snapshot loaded at startup, hot until this run has counted enough requests to write its own
+    private volatile Set<String> snapshotKeys = Collections.emptySet();
+    private final CacheKeyNormalizer keyNormalizer = new CacheKeyNormalizer(
+            Arrays.asList(System.getProperty("proxy.cacheKey.ignoreParams",
+                    "utm_*,gclid,fbclid,mc_cid,mc_eid").split(",")),
+            Boolean.parseBoolean(System.getProperty("proxy.cacheKey.sortParams", "true")));
+    private final NegativeCache negativeCache = new NegativeCache(System::currentTimeMillis,
+            Integer.getInteger("proxy.circuitBreaker.threshold", 3),
+            Long.getLong("proxy.circuitBreaker.openMs", 30_000L),
+            Integer.getInteger("proxy.negativeCache.maxEntries", 10_000));
 
     public void loadBlockSites() throws IOException, ClassNotFoundException {
         // Load in blocked sites from file
@@ -45,7 +75,7 @@ public class CacheHandler {
             try (InputStream fileInputStream = new FileInputStream(cachedSitesFile)) {
                 if (fileInputStream.available() > 0) {
                     try (ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream)) {
-                        CacheHandler.cachedSites = (HashMap<String, File>) objectInputStream.readObject();
+                        CacheHandler.cachedSites = new ConcurrentHashMap<>((Map<String, File>) objectInputStream.readObject());
                     } catch (EOFException e) {
                         log.error("Exception while reading cached sites", e);
                     }
@@ -54,16 +84,223 @@ public class CacheHandler {
                 e.printStackTrace();
             }
         }
+
+        // Load in the Vary headers of cached variants
+        File varyFile = new File("cached_vary.txt");
+        if (varyFile.exists() && varyFile.length() > 0) {
+            try (ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream(varyFile))) {
+                varyHeaders = new ConcurrentHashMap<>((Map<String, ArrayList<String>>) objectInputStream.readObject());
+            } catch (EOFException e) {
+                log.error("Exception while reading cached variants", e);
+            }
+        }
+
+        // Rebuild the variant index; variant keys are the primary key, a newline, then the varied header values
+        variantKeys.clear();
+        for (String key : cachedSites.keySet()) {
+            int primaryEnd = key.indexOf('\n');
+            if (primaryEnd > 0) {
+                variantKeys.computeIfAbsent(key.substring(0, primaryEnd), k -> ConcurrentHashMap.newKeySet()).add(key);
+            }
+        }
+    }
+
+    /**
+     * Loads user-defined cache key rewrite rules from cache_key_rules.txt, if present.
+     * Each non-empty line not starting with # holds a regex and its replacement separated by whitespace.
+     */
+    public void loadCacheKeyRules() throws IOException {
+        File rulesFile = new File("cache_key_rules.txt");
+        if (!rulesFile.exists()) {
+            return;
+        }
+        for (String line : Files.readAllLines(rulesFile.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] rule = line.split("\\s+", 2);
+            keyNormalizer.addRewriteRule(rule[0], rule.length > 1 ? rule[1] : "");
+            log.debug("Cache key rule loaded: {}", line);
+        }
+    }
+
+    /**
+     * @return the normalized key a request URL is cached under
+     */
+    public String getCacheKey(String url) {
+        return keyNormalizer.normalize(url);
     }
 
     public File getCachedPage(String url) {
         return cachedSites.get(url);
     }
 
+    /**
+     * Looks up a cached page, selecting the variant matching the request headers if the origin sent Vary.
+     *
+     * @param requestHeaders request headers keyed by lower case name
+     */
+    public File getCachedPage(String key, Map<String, String> requestHeaders) {
+        List<String> vary = varyHeaders.get(key);
+        if (vary == null) {
+            return cachedSites.get(key);
+        }
+        return cachedSites.get(getVariantKey(key, vary, requestHeaders));
+    }
+
+    /**
+     * @return true if anything is cached under the key, whichever variant it is
+     */
+    public boolean isCached(String key) {
+        return cachedSites.containsKey(key) || variantKeys.containsKey(key);
+    }
+
+    /**
+     * Claims the origin fetch of a key. The caller that gets null owns the fetch and must call
+     * {@link #finishFetch} once it is over, whether it succeeded or not.
+     *
+     * @return null if the caller now owns the fetch, or the fetch already in progress
+     */
+    public CompletableFuture<File> startFetch(String key) {
+        return fetchesInProgress.putIfAbsent(key, new CompletableFuture<>());
+    }
+
+    /**
+     * Ends a fetch claimed with {@link #startFetch} and wakes up everyone waiting on it.
+     *
+     * @param cachedFile the file the response was cached in, or null if it was not cached
+     */
+    public void finishFetch(String key, File cachedFile) {
+        CompletableFuture<File> fetch = fetchesInProgress.remove(key);
+        if (fetch != null) {
+            fetch.complete(cachedFile);
+        }
+    }
+
+    public boolean isFetchInProgress(String key) {
+        return fetchesInProgress.containsKey(key);
+    }
+
+    /**
+     * @return every cached file stored under the key, including all of its variants
+     */
+    public List<File> getCachedFiles(String key) {
+        List<File> files = new ArrayList<>();
+        File file = cachedSites.get(key);
+        if (file != null) {
+            files.add(file);
+        }
+        Set<String> variants = variantKeys.get(key);
+        if (variants != null) {
+            for (String variantKey : variants) {
+                File variant = cachedSites.get(variantKey);
+                if (variant != null) {
+                    files.add(variant);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Counts a request for the key towards the popularity snapshot used for warm starts.
+     */
+    public void recordAccess(String key) {
+        popularity.record(key);
+    }
+
+    /**
+     * Counts start empty after a restart, so keys from the loaded popularity snapshot also count as hot.
+     *
+     * @return true if the key was requested at least {@code minRequests} times recently or was hot before the restart
+     */
+    public boolean isHot(String key, int minRequests) {
+        return popularity.getCount(key) >= minRequests || snapshotKeys.contains(key);
+    }
+
+    /**
+     * Saves the hottest keys to cache_popularity.txt.
+     */
+    public void writePopularityToFile(int limit) throws IOException {
+        popularity.writeSnapshot(new File("cache_popularity.txt"), limit);
+        snapshotKeys = Collections.emptySet();
+        log.debug("Cache popularity snapshot written");
+    }
+
+    /**
+     * @return the cached files of the keys in the last popularity snapshot, hottest first
+     */
+    public List<File> loadPopularFiles() throws IOException {
+        List<String> keys = CachePopularity.readSnapshot(new File("cache_popularity.txt"));
+        snapshotKeys = new HashSet<>(keys);
+        List<File> files = new ArrayList<>();
+        for (String key : keys) {
+            files.addAll(getCachedFiles(key));
+        }
+        return files;
+    }
+
     public void addCachedPage(String urlString, File fileToCache) {
         cachedSites.put(urlString, fileToCache);
     }
 
+    /**
+     * Stores one variant of a page whose response varied by the given request headers.
+     */
+    public void addCachedVariant(String key, List<String> vary, Map<String, String> requestHeaders, File fileToCache) {
+        varyHeaders.put(key, new ArrayList<>(vary));
+        String variantKey = getVariantKey(key, vary, requestHeaders);
+        cachedSites.put(variantKey, fileToCache);
+        variantKeys.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(variantKey);
+    }
+
+    /**
+     * Builds the secondary key of a variant from the values of the headers named in Vary.
+     */
+    public String getVariantKey(String key, List<String> vary, Map<String, String> requestHeaders) {
+        StringBuilder variantKey = new StringBuilder(key);
+        for (String header : vary) {
+            String name = header.toLowerCase(Locale.ROOT);
+            String value = requestHeaders.get(name);
+            variantKey.append('\n').append(name).append('=').append(value == null ? "" : value.trim());
+        }
+        return variantKey.toString();
+    }
+
+    /**
+     * @return the status code the origin failed with recently for this URL, or -1 if none is remembered
+     */
+    public int getNegativeCachedStatus(String url) {
+        return negativeCache.getUrlFailure(url);
+    }
+
+    /**
+     * Remembers a failed origin response for this URL if its status code is negatively cacheable.
+     */
+    public void addNegativeCachedStatus(String url, int statusCode) {
+        FailureClass failureClass = FailureClass.forStatusCode(statusCode);
+        if (failureClass != null) {
+            negativeCache.addUrlFailure(url, statusCode, failureClass);
+        }
+    }
+
+    /**
+     * @return the status code to answer with while the host is failing or its circuit breaker is open,
+     * or -1 if the origin may be contacted
+     */
+    public int getUnavailableHostStatus(String hostPort) {
+        return negativeCache.getHostFailure(hostPort);
+    }
+
+    public void addHostFailure(String hostPort, FailureClass failureClass) {
+        negativeCache.addHostFailure(hostPort, failureClass);
+    }
+
+    public void addHostSuccess(String hostPort) {
+        negativeCache.addHostSuccess(hostPort);
+    }
+
     public boolean isBlocked(String url) {
         return blockedSites.get(url) != null;
     }
@@ -80,9 +317,12 @@ public class CacheHandler {
     public void writeCacheToFile() throws IOException {
         try (FileOutputStream fileOutputStream = new FileOutputStream("cached_sites.txt")) {
             try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(fileOutputStream)) {
-                objectOutputStream.writeObject(cachedSites);
+                objectOutputStream.writeObject(new HashMap<>(cachedSites));
             }
         }
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(new FileOutputStream("cached_vary.txt"))) {
+            objectOutputStream.writeObject(new HashMap<>(varyHeaders));
+        }
         log.debug("Cached Sites written");
     }
 
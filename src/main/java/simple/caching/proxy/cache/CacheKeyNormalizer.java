@@ -0,0 +1,129 @@
+package simple.caching.proxy.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Turns a request URL into the key it is cached under, so that trivially different URLs share one entry.
+ * Steps, in order: lower-case scheme and host, drop the default port and the fragment, drop ignored
+ * query parameters, sort the remaining parameters, then apply user-defined regex rewrite rules.
+ */
+public class CacheKeyNormalizer {
+
+    private final List<String> ignoredParams = new ArrayList<>();
+    private final List<String> ignoredParamPrefixes = new ArrayList<>();
+    private final List<Pattern> rewritePatterns = new ArrayList<>();
+    private final List<String> rewriteReplacements = new ArrayList<>();
+    private final boolean sortParams;
+
+    /**
+     * @param ignoredParams query parameter names to drop; a trailing '*' matches a prefix, e.g. "utm_*"
+     * @param sortParams    whether the remaining query parameters are put in a canonical order
+     */
+    public CacheKeyNormalizer(List<String> ignoredParams, boolean sortParams) {
+        for (String param : ignoredParams) {
+            String name = param.trim().toLowerCase(Locale.ROOT);
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (name.endsWith("*")) {
+                ignoredParamPrefixes.add(name.substring(0, name.length() - 1));
+            } else {
+                this.ignoredParams.add(name);
+            }
+        }
+        this.sortParams = sortParams;
+    }
+
+    /**
+     * Adds a rewrite rule applied to the already canonicalized key. Replacement may use $1-style groups.
+     */
+    public void addRewriteRule(String regex, String replacement) {
+        rewritePatterns.add(Pattern.compile(regex));
+        rewriteReplacements.add(replacement);
+    }
+
+    public String normalize(String url) {
+        String key = canonicalize(url);
+        for (int i = 0; i < rewritePatterns.size(); i++) {
+            key = rewritePatterns.get(i).matcher(key).replaceAll(rewriteReplacements.get(i));
+        }
+        return key;
+    }
+
+    private String canonicalize(String url) {
+        int schemeEnd = url.indexOf("://");
+        if (schemeEnd < 0) {
+            return url;
+        }
+        String scheme = url.substring(0, schemeEnd).toLowerCase(Locale.ROOT);
+        int authorityStart = schemeEnd + 3;
+        int authorityEnd = indexOfAny(url, authorityStart, "/?#");
+        String authority = url.substring(authorityStart, authorityEnd).toLowerCase(Locale.ROOT);
+
+        // Strip the scheme's default port and a trailing dot on the host
+        String defaultPort = scheme.equals("https") ? ":443" : scheme.equals("http") ? ":80" : null;
+        if (defaultPort != null && authority.endsWith(defaultPort)) {
+            authority = authority.substring(0, authority.length() - defaultPort.length());
+        }
+        if (authority.endsWith(".")) {
+            authority = authority.substring(0, authority.length() - 1);
+        }
+
+        int fragmentStart = url.indexOf('#', authorityEnd);
+        String rest = fragmentStart < 0 ? url.substring(authorityEnd) : url.substring(authorityEnd, fragmentStart);
+        int queryStart = rest.indexOf('?');
+        String path = queryStart < 0 ? rest : rest.substring(0, queryStart);
+        if (path.isEmpty()) {
+            path = "/";
+        }
+
+        StringBuilder key = new StringBuilder(url.length()).append(scheme).append("://").append(authority).append(path);
+        if (queryStart >= 0) {
+            String query = normalizeQuery(rest.substring(queryStart + 1));
+            if (!query.isEmpty()) {
+                key.append('?').append(query);
+            }
+        }
+        return key.toString();
+    }
+
+    private String normalizeQuery(String query) {
+        List<String> kept = new ArrayList<>();
+        for (String param : query.split("&")) {
+            if (!param.isEmpty() && !isIgnored(param)) {
+                kept.add(param);
+            }
+        }
+        if (sortParams) {
+            Collections.sort(kept);
+        }
+        return String.join("&", kept);
+    }
+
+    private boolean isIgnored(String param) {
+        int equals = param.indexOf('=');
+        String name = (equals < 0 ? param : param.substring(0, equals)).toLowerCase(Locale.ROOT);
+        if (ignoredParams.contains(name)) {
+            return true;
+        }
+        for (String prefix : ignoredParamPrefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOfAny(String s, int from, String chars) {
+        for (int i = from; i < s.length(); i++) {
+            if (chars.indexOf(s.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return s.length();
+    }
+}
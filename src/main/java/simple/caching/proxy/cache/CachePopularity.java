@@ -0,0 +1,90 @@
+package simple.caching.proxy.cache;
+
+import com.google.common.collect.Ordering;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request counts per cache key, used to remember which objects are hot across restarts.
+ * Counts are halved every time a snapshot is taken, so the ranking favours recent traffic
+ * and keys that stop being requested eventually drop out.
+ */
+public class CachePopularity {
+
+    private final ConcurrentHashMap<String, AtomicLong> counts = new ConcurrentHashMap<>();
+
+    public void record(String key) {
+        AtomicLong count = counts.get(key);
+        if (count == null) {
+            count = counts.computeIfAbsent(key, k -> new AtomicLong());
+        }
+        count.incrementAndGet();
+    }
+
+    public long getCount(String key) {
+        AtomicLong count = counts.get(key);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return up to {@code limit} keys, most requested first
+     */
+    public List<String> hottest(int limit) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.size());
+        for (Map.Entry<String, AtomicLong> entry : counts.entrySet()) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().get()));
+        }
+        List<String> keys = new ArrayList<>(Math.min(limit, entries.size()));
+        for (Map.Entry<String, Long> entry : Ordering.natural().<Map.Entry<String, Long>>onResultOf(Map.Entry::getValue)
+                .greatestOf(entries, limit)) {
+            keys.add(entry.getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * Halves every count and forgets keys that reach zero.
+     */
+    public void decay() {
+        counts.entrySet().removeIf(entry -> entry.getValue().updateAndGet(count -> count / 2) == 0);
+    }
+
+    /**
+     * Writes the hottest keys to the file, one per line, then decays the counts.
+     * The file is replaced atomically so a crash never leaves a truncated snapshot.
+     */
+    public void writeSnapshot(File file, int limit) throws IOException {
+        List<String> keys = hottest(limit);
+        File temp = new File(file.getPath() + ".tmp");
+        Files.write(temp.toPath(), keys, StandardCharsets.UTF_8);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        decay();
+    }
+
+    /**
+     * @return the keys of a snapshot, hottest first, or an empty list if there is none
+     */
+    public static List<String> readSnapshot(File file) throws IOException {
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+        List<String> keys = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) {
+                keys.add(line);
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,95 @@
+package simple.caching.proxy.cache;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pulls cached files into the OS page cache after a restart so the first requests for hot objects
+ * do not wait on the disk. Each file is memory-mapped and {@link java.nio.MappedByteBuffer#load() loaded},
+ * which is the closest Java gets to madvise(MADV_WILLNEED). Files are warmed in parallel, hottest first,
+ * until the byte budget is used up.
+ */
+@Slf4j
+public class CacheWarmer {
+
+    private final int threads;
+    private final long maxBytes;
+    private final AtomicLong warmedBytes = new AtomicLong();
+    private final AtomicInteger warmedFiles = new AtomicInteger();
+
+    public CacheWarmer(int threads, long maxBytes) {
+        this.threads = threads;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Warms the files on a background thread and returns immediately.
+     */
+    public Thread startInBackground(List<File> files) {
+        Thread thread = new Thread(() -> warm(files), "cache-warmer");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Warms the files and blocks until done.
+     */
+    public void warm(List<File> files) {
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "cache-warmer-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (File file : files) {
+            pool.execute(() -> warmFile(file));
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        log.debug("Warm start preloaded {} files ({} bytes) in {} ms",
+                warmedFiles.get(), warmedBytes.get(), System.currentTimeMillis() - start);
+    }
+
+    private void warmFile(File file) {
+        long length = file.length();
+        if (length == 0 || warmedBytes.get() >= maxBytes) {
+            return;
+        }
+        // Reserve the budget before touching the file so parallel workers don't overshoot it
+        if (warmedBytes.addAndGet(length) > maxBytes) {
+            warmedBytes.addAndGet(-length);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(length, Integer.MAX_VALUE)).load();
+            warmedFiles.incrementAndGet();
+        } catch (IOException e) {
+            warmedBytes.addAndGet(-length);
+            log.debug("Could not preload {}", file, e);
+        }
+    }
+
+    public long getWarmedBytes() {
+        return warmedBytes.get();
+    }
+
+    public int getWarmedFiles() {
+        return warmedFiles.get();
+    }
+}
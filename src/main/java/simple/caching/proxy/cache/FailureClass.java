@@ -0,0 +1,45 @@
+package simple.caching.proxy.cache;
+
+/**
+ * Kinds of origin failures that are remembered by the negative cache, each with its own TTL.
+ * TTLs are read from system properties, e.g. -Dproxy.negativeCache.notFoundTtlMs=60000
+ */
+public enum FailureClass {
+    // 404 / 410, keyed by URL
+    NOT_FOUND(404, Long.getLong("proxy.negativeCache.notFoundTtlMs", 30_000L)),
+    // 5xx, keyed by URL
+    SERVER_ERROR(502, Long.getLong("proxy.negativeCache.serverErrorTtlMs", 5_000L)),
+    // Refused / unresolvable / unreachable, keyed by host:port
+    CONNECT_FAILURE(502, Long.getLong("proxy.negativeCache.connectFailureTtlMs", 10_000L)),
+    // Connect or read timeout, keyed by host:port
+    TIMEOUT(504, Long.getLong("proxy.negativeCache.timeoutTtlMs", 10_000L));
+
+    private final int defaultStatusCode;
+    private final long ttlMillis;
+
+    FailureClass(int defaultStatusCode, long ttlMillis) {
+        this.defaultStatusCode = defaultStatusCode;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public int getDefaultStatusCode() {
+        return defaultStatusCode;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * @return the failure class for an origin response code, or null if the response should not be negatively cached
+     */
+    public static FailureClass forStatusCode(int statusCode) {
+        if (statusCode == 404 || statusCode == 410) {
+            return NOT_FOUND;
+        }
+        if (statusCode >= 500 && statusCode < 600) {
+            return SERVER_ERROR;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,162 @@
+package simple.caching.proxy.cache;
+
+import com.sun.nio.file.ExtendedOpenOption;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams large cached files to a client in fixed-size chunks without pulling them onto the heap.
+ * <p>
+ * Hot files are served from a memory mapping, so their pages stay in the OS page cache for the next request.
+ * One-shot files are read with O_DIRECT where the file system supports it, so a big download does not evict
+ * the small hot objects from the page cache. Java has no posix_fadvise(DONTNEED), so bypassing the cache
+ * is the way to keep these pages out of it. Each chunk is flushed before the next is read, so a slow client's
+ * socket send buffer paces the reads instead of data piling up in memory.
+ * <p>
+ * Client sockets are plain stream sockets without a channel, so transferTo is not available; each chunk is
+ * copied once into a heap array and written to the stream.
+ */
+@Slf4j
+public class LargeObjectSender {
+
+    // Direct I/O buffers are pooled, since direct memory is only freed when the GC gets round to it
+    private static final int DIRECT_BUFFER_BYTES = 1024 * 1024;
+    private static final int MAX_ALIGNMENT = 64 * 1024;
+    private static final int MAX_DIRECT_BUFFERS = Integer.getInteger("proxy.largeObject.directBuffers", 16);
+    private static final ArrayBlockingQueue<ByteBuffer> FREE_DIRECT_BUFFERS = new ArrayBlockingQueue<>(MAX_DIRECT_BUFFERS);
+    private static final AtomicInteger ALLOCATED_DIRECT_BUFFERS = new AtomicInteger();
+
+    private final int chunkBytes;
+
+    public LargeObjectSender(int chunkBytes) {
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * @param oneShot true if the file is unlikely to be requested again soon and should not stay in the page cache
+     * @return number of bytes sent
+     */
+    public long send(File file, OutputStream out, boolean oneShot) throws IOException {
+        byte[] chunk = new byte[chunkBytes];
+        if (oneShot) {
+            long sent = sendDirect(file.toPath(), out, chunk);
+            if (sent >= 0) {
+                return sent;
+            }
+        }
+        return sendMapped(file.toPath(), out, chunk);
+    }
+
+    private long sendMapped(Path path, OutputStream out, byte[] chunk) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            // One mapping per 2GB window rather than per chunk, so big files don't pile up mappings until GC
+            while (position < size) {
+                long windowLength = Math.min(Integer.MAX_VALUE, size - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowLength);
+                while (window.hasRemaining()) {
+                    int length = Math.min(chunk.length, window.remaining());
+                    window.get(chunk, 0, length);
+                    out.write(chunk, 0, length);
+                    out.flush();
+                }
+                position += windowLength;
+            }
+            return size;
+        }
+    }
+
+    /**
+     * @return bytes sent, or -1 if the file cannot be read with direct I/O and nothing was sent.
+     * The first read happens before anything is written, so a file system that rejects it costs nothing.
+     */
+    private long sendDirect(Path path, OutputStream out, byte[] chunk) throws IOException {
+        int blockSize;
+        try {
+            blockSize = (int) Files.getFileStore(path).getBlockSize();
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Direct I/O not available for {}", path);
+            return -1;
+        }
+        if (blockSize > MAX_ALIGNMENT || chunk.length < blockSize) {
+            return -1;
+        }
+        ByteBuffer pooled = takeDirectBuffer();
+        if (pooled == null) {
+            log.debug("No free direct buffer, serving {} through the page cache", path);
+            return -1;
+        }
+
+        try {
+            FileChannel directChannel;
+            try {
+                directChannel = FileChannel.open(path, StandardOpenOption.READ, ExtendedOpenOption.DIRECT);
+            } catch (IOException | UnsupportedOperationException e) {
+                log.debug("Direct I/O not available for {}", path);
+                return -1;
+            }
+
+            try (FileChannel channel = directChannel) {
+                // Direct reads need a block aligned buffer whose size is a multiple of the block size
+                pooled.clear();
+                ByteBuffer buffer = pooled.alignedSlice(blockSize);
+                int readBytes = Math.min(buffer.capacity(), chunk.length) / blockSize * blockSize;
+                long size = channel.size();
+                long sent = 0;
+                int read;
+                buffer.limit(readBytes);
+                try {
+                    read = channel.read(buffer);
+                } catch (IOException e) {
+                    // Alignment rules vary between file systems; nothing is sent yet, so the mapped path can take over
+                    log.debug("Direct read of {} failed", path, e);
+                    return -1;
+                }
+                while (read > 0) {
+                    buffer.flip();
+                    buffer.get(chunk, 0, read);
+                    out.write(chunk, 0, read);
+                    out.flush();
+                    sent += read;
+                    // The last read is short and leaves the position unaligned, so stop at the file size
+                    if (sent >= size) {
+                        break;
+                    }
+                    buffer.clear();
+                    buffer.limit(readBytes);
+                    read = channel.read(buffer);
+                }
+                return sent;
+            }
+        } finally {
+            FREE_DIRECT_BUFFERS.offer(pooled);
+        }
+    }
+
+    /**
+     * @return a pooled direct buffer, or null if all of them are in use
+     */
+    private static ByteBuffer takeDirectBuffer() {
+        ByteBuffer buffer = FREE_DIRECT_BUFFERS.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (ALLOCATED_DIRECT_BUFFERS.incrementAndGet() > MAX_DIRECT_BUFFERS) {
+            ALLOCATED_DIRECT_BUFFERS.decrementAndGet();
+            return null;
+        }
+        return ByteBuffer.allocateDirect(DIRECT_BUFFER_BYTES + MAX_ALIGNMENT);
+    }
+}
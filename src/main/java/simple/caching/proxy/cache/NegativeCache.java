@@ -0,0 +1,160 @@
+package simple.caching.proxy.cache;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Short-lived memory of origin failures so that retries fail fast instead of hitting the origin again.
+ * URLs that returned 404/410/5xx are remembered by URL. Hosts that refused connections or timed out are
+ * remembered by host:port and guarded by a circuit breaker: after {@code breakerThreshold} consecutive
+ * failures the host stays open for {@code breakerOpenMillis}, then a single probe request is let through.
+ * <p>
+ * Clients choose the URLs, so both maps are bounded: entries are evicted once they can no longer matter,
+ * whether or not they are looked up again, and the least recently used go first past {@code maxEntries}.
+ */
+public class NegativeCache {
+
+    private final Cache<String, Entry> failedUrls;
+    private final Cache<String, HostState> failedHosts;
+    private final LongSupplier clock;
+    private final int breakerThreshold;
+    private final long breakerOpenMillis;
+
+    public NegativeCache(LongSupplier clock, int breakerThreshold, long breakerOpenMillis, int maxEntries) {
+        this.clock = clock;
+        this.breakerThreshold = breakerThreshold;
+        this.breakerOpenMillis = breakerOpenMillis;
+
+        long longestTtl = 0;
+        for (FailureClass failureClass : FailureClass.values()) {
+            longestTtl = Math.max(longestTtl, failureClass.getTtlMillis());
+        }
+        Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return TimeUnit.MILLISECONDS.toNanos(clock.getAsLong());
+            }
+        };
+        failedUrls = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .expireAfterWrite(longestTtl, TimeUnit.MILLISECONDS)
+                .maximumSize(maxEntries)
+                .build();
+        // A host state matters until it stops being open and its half-open probe window has passed
+        failedHosts = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .expireAfterWrite(Math.max(breakerOpenMillis, longestTtl) + breakerOpenMillis, TimeUnit.MILLISECONDS)
+                .maximumSize(maxEntries)
+                .build();
+    }
+
+    /**
+     * @return the status code to replay for this URL, or -1 if it is not negatively cached
+     */
+    public int getUrlFailure(String url) {
+        Entry entry = failedUrls.getIfPresent(url);
+        if (entry == null) {
+            return -1;
+        }
+        if (clock.getAsLong() >= entry.expiresAt) {
+            failedUrls.asMap().remove(url, entry);
+            return -1;
+        }
+        return entry.statusCode;
+    }
+
+    public void addUrlFailure(String url, int statusCode, FailureClass failureClass) {
+        failedUrls.put(url, new Entry(statusCode, clock.getAsLong() + failureClass.getTtlMillis()));
+    }
+
+    /**
+     * Checks whether a request to the host may go to the origin.
+     *
+     * @return the status code to answer with if the host is unavailable, or -1 if the request may proceed
+     */
+    public int getHostFailure(String hostPort) {
+        HostState state = failedHosts.getIfPresent(hostPort);
+        if (state == null) {
+            return -1;
+        }
+        synchronized (state) {
+            long now = clock.getAsLong();
+            if (now < state.openUntil) {
+                return state.statusCode;
+            }
+            if (state.consecutiveFailures < breakerThreshold) {
+                // Short negative entry expired, breaker never tripped
+                return -1;
+            }
+            // Breaker half-open: let one probe through until it reports back,
+            // or another one if the previous probe never did
+            if (state.probeStartedAt == 0 || now - state.probeStartedAt >= breakerOpenMillis) {
+                state.probeStartedAt = now;
+                return -1;
+            }
+            return state.statusCode;
+        }
+    }
+
+    public void addHostFailure(String hostPort, FailureClass failureClass) {
+        HostState state = failedHosts.asMap().computeIfAbsent(hostPort, k -> new HostState());
+        synchronized (state) {
+            state.consecutiveFailures++;
+            state.statusCode = failureClass.getDefaultStatusCode();
+            long openFor = state.consecutiveFailures >= breakerThreshold
+                    ? Math.max(breakerOpenMillis, failureClass.getTtlMillis())
+                    : failureClass.getTtlMillis();
+            state.openUntil = clock.getAsLong() + openFor;
+            state.probeStartedAt = 0;
+        }
+        // Written again so the entry's expiry counts from the latest failure
+        failedHosts.put(hostPort, state);
+    }
+
+    public void addHostSuccess(String hostPort) {
+        // Fast path: healthy hosts have no state
+        if (failedHosts.asMap().containsKey(hostPort)) {
+            failedHosts.invalidate(hostPort);
+        }
+    }
+
+    public boolean isBreakerOpen(String hostPort) {
+        HostState state = failedHosts.getIfPresent(hostPort);
+        return state != null && state.consecutiveFailures >= breakerThreshold;
+    }
+
+    /**
+     * @return number of URLs and hosts currently remembered
+     */
+    long size() {
+        failedUrls.cleanUp();
+        failedHosts.cleanUp();
+        return failedUrls.size() + failedHosts.size();
+    }
+
+    public void clear() {
+        failedUrls.invalidateAll();
+        failedHosts.invalidateAll();
+    }
+
+    private static class Entry {
+        final int statusCode;
+        final long expiresAt;
+
+        Entry(int statusCode, long expiresAt) {
+            this.statusCode = statusCode;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class HostState {
+        int consecutiveFailures;
+        int statusCode;
+        long openUntil;
+        long probeStartedAt;
+    }
+}
@@ -0,0 +1,60 @@
+package simple.caching.proxy.log;
+
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+
+/**
+ * Entry point for the structured access log.
+ * Request threads call {@link #record} which only publishes into a ring buffer;
+ * formatting and file I/O happen on a dedicated background writer thread.
+ *
+ * Settings are read from system properties:
+ * proxy.accessLog.file (default logs/access.log), proxy.accessLog.capacity (ring slots, default 8192),
+ * proxy.accessLog.maxBytes (rotation size, default 64MB), proxy.accessLog.maxFiles (default 5).
+ */
+@UtilityClass
+@Slf4j
+public class AccessLog {
+
+    private final AccessLogRingBuffer ringBuffer =
+            new AccessLogRingBuffer(Integer.getInteger("proxy.accessLog.capacity", 8192));
+    private AccessLogWriter writer;
+    private Thread writerThread;
+
+    public synchronized void start() {
+        if (writerThread != null) {
+            return;
+        }
+        File file = new File(System.getProperty("proxy.accessLog.file", "logs/access.log"));
+        writer = new AccessLogWriter(ringBuffer, file,
+                Long.getLong("proxy.accessLog.maxBytes", 64L * 1024 * 1024),
+                Integer.getInteger("proxy.accessLog.maxFiles", 5));
+        writerThread = new Thread(writer, "access-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        log.debug("Access log writing to {}", file);
+    }
+
+    /**
+     * Publishes one access record. Never blocks; drops the record if the writer is behind.
+     */
+    public void record(String method, String url, CacheStatus status, long bytes, long latencyMicros) {
+        ringBuffer.offer(System.currentTimeMillis(), method, url, status, bytes, latencyMicros);
+    }
+
+    public synchronized void stop() {
+        if (writerThread == null) {
+            return;
+        }
+        writer.stop();
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+        log.debug("Access log stopped, {} records dropped", ringBuffer.getDroppedCount());
+    }
+}
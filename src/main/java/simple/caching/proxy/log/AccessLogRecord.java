@@ -0,0 +1,39 @@
+package simple.caching.proxy.log;
+
+/**
+ * Mutable holder the writer drains ring buffer slots into.
+ * A single instance is reused for every record so draining does not allocate.
+ */
+public class AccessLogRecord {
+
+    long timestamp;
+    String method;
+    String url;
+    CacheStatus status;
+    long bytes;
+    long latencyMicros;
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public CacheStatus getStatus() {
+        return status;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getLatencyMicros() {
+        return latencyMicros;
+    }
+}
@@ -0,0 +1,113 @@
+package simple.caching.proxy.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * Lock-free multi-producer / single-consumer ring of fixed-size access log records.
+ * Records are stored column-wise in pre-allocated arrays so publishing never allocates.
+ * When the consumer falls behind, new records are dropped instead of blocking the producer.
+ */
+public class AccessLogRingBuffer {
+
+    private final int capacity;
+    private final int mask;
+
+    private final long[] timestamps;
+    private final String[] methods;
+    private final String[] urls;
+    private final CacheStatus[] statuses;
+    private final long[] bytes;
+    private final long[] latencies;
+
+    // Sequence number last published into each slot, -1 while never written
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long consumed;
+
+    public AccessLogRingBuffer(int requestedCapacity) {
+        // Round up to a power of two so a slot index is a simple mask
+        int size = Integer.highestOneBit(Math.max(2, requestedCapacity) - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.timestamps = new long[size];
+        this.methods = new String[size];
+        this.urls = new String[size];
+        this.statuses = new CacheStatus[size];
+        this.bytes = new long[size];
+        this.latencies = new long[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Publishes a record without blocking.
+     *
+     * @return false if the buffer was full and the record was dropped
+     */
+    public boolean offer(long timestamp, String method, String url, CacheStatus status, long byteCount, long latencyMicros) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= capacity) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        int index = (int) (sequence & mask);
+        timestamps[index] = timestamp;
+        methods[index] = method;
+        urls[index] = url;
+        statuses[index] = status;
+        bytes[index] = byteCount;
+        latencies[index] = latencyMicros;
+        // Volatile write makes the slot contents visible to the consumer
+        published.set(index, sequence);
+        return true;
+    }
+
+    /**
+     * Drains up to {@code maxRecords} published records in order. Must only be called from one thread.
+     *
+     * @param record  holder that is filled for each record before being passed to the handler
+     * @param handler receives each record; must not keep a reference to the holder
+     * @return number of records drained
+     */
+    public int drain(AccessLogRecord record, Consumer<AccessLogRecord> handler, int maxRecords) {
+        long sequence = consumed;
+        int count = 0;
+        while (count < maxRecords) {
+            int index = (int) (sequence & mask);
+            if (published.get(index) != sequence) {
+                break;
+            }
+            record.timestamp = timestamps[index];
+            record.method = methods[index];
+            record.url = urls[index];
+            record.status = statuses[index];
+            record.bytes = bytes[index];
+            record.latencyMicros = latencies[index];
+            // Release references so the slot does not pin request strings
+            methods[index] = null;
+            urls[index] = null;
+            handler.accept(record);
+            sequence++;
+            count++;
+            consumed = sequence;
+        }
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
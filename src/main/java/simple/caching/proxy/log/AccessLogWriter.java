@@ -0,0 +1,168 @@
+package simple.caching.proxy.log;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background thread that drains the access log ring buffer in batches
+ * and appends them as JSON lines to a size-rotated file.
+ */
+@Slf4j
+public class AccessLogWriter implements Runnable {
+
+    private static final int BATCH_SIZE = 512;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private final AccessLogRingBuffer ringBuffer;
+    private final File logFile;
+    private final long maxFileBytes;
+    private final int maxFiles;
+
+    private final AccessLogRecord record = new AccessLogRecord();
+    private final StringBuilder batch = new StringBuilder(BATCH_SIZE * 128);
+    private OutputStream out;
+    private long currentFileBytes;
+    private volatile boolean isRunning = true;
+
+    public AccessLogWriter(AccessLogRingBuffer ringBuffer, File logFile, long maxFileBytes, int maxFiles) {
+        this.ringBuffer = ringBuffer;
+        this.logFile = logFile;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+    }
+
+    @Override
+    public void run() {
+        try {
+            open();
+            while (isRunning) {
+                if (flushBatch() == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+            // Drain whatever was published before shutdown
+            while (flushBatch() > 0) {
+                // keep draining
+            }
+        } catch (IOException e) {
+            log.error("Access log writer stopped", e);
+        } finally {
+            close();
+        }
+    }
+
+    public void stop() {
+        isRunning = false;
+    }
+
+    private int flushBatch() throws IOException {
+        batch.setLength(0);
+        int drained = ringBuffer.drain(record, this::appendJson, BATCH_SIZE);
+        if (drained > 0) {
+            byte[] data = batch.toString().getBytes(StandardCharsets.UTF_8);
+            if (currentFileBytes + data.length > maxFileBytes && currentFileBytes > 0) {
+                rotate();
+            }
+            out.write(data);
+            out.flush();
+            currentFileBytes += data.length;
+        }
+        return drained;
+    }
+
+    private void appendJson(AccessLogRecord r) {
+        batch.append("{\"ts\":").append(r.getTimestamp()).append(",\"method\":\"");
+        // Method and host come from the client's request line, so they must not be trusted to be valid JSON
+        appendEscaped(batch, r.getMethod());
+        batch.append("\",\"host\":\"");
+        appendEscaped(batch, hostOf(r.getUrl()));
+        batch.append("\",\"status\":\"").append(r.getStatus())
+                .append("\",\"bytes\":").append(r.getBytes())
+                .append(",\"latencyUs\":").append(r.getLatencyMicros())
+                .append("}\n");
+    }
+
+    /**
+     * Appends a value as the contents of a JSON string, escaping quotes, backslashes and control characters.
+     */
+    static void appendEscaped(StringBuilder out, String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x7f) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    /**
+     * Extracts the host part of a request URL. Done here rather than on the request thread.
+     */
+    static String hostOf(String url) {
+        if (url == null) {
+            return "";
+        }
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = start;
+        while (end < url.length()) {
+            char c = url.charAt(end);
+            if (c == '/' || c == ':' || c == '?' || c == '"' || c == '\\') {
+                break;
+            }
+            end++;
+        }
+        return url.substring(start, end);
+    }
+
+    private void open() throws IOException {
+        File parent = logFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        currentFileBytes = logFile.length();
+        out = new BufferedOutputStream(new FileOutputStream(logFile, true));
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        // access.log.(n-1) -> access.log.n, ..., access.log -> access.log.1
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File source = i == 1 ? logFile : new File(logFile.getPath() + "." + (i - 1));
+            File target = new File(logFile.getPath() + "." + i);
+            if (source.exists()) {
+                target.delete();
+                source.renameTo(target);
+            }
+        }
+        if (maxFiles <= 1) {
+            logFile.delete();
+        }
+        out = new BufferedOutputStream(new FileOutputStream(logFile, false));
+        currentFileBytes = 0;
+    }
+
+    private void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.error("Error closing access log", e);
+            }
+        }
+    }
+}
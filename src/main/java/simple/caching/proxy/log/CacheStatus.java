@@ -0,0 +1,13 @@
+package simple.caching.proxy.log;
+
+/**
+ * Outcome of a proxied request as seen by the cache, written to the access log.
+ */
+public enum CacheStatus {
+    HIT,
+    MISS,
+    BLOCKED,
+    NEGATIVE_HIT,
+    TUNNEL,
+    ERROR
+}
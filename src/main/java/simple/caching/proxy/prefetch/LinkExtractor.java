@@ -0,0 +1,132 @@
+package simple.caching.proxy.prefetch;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Incremental scanner that pulls subresource URLs (images, scripts, stylesheets) out of an HTML page
+ * as it streams through the proxy. It only looks at tags, keeps no DOM, and tolerates tags split across lines.
+ */
+public class LinkExtractor {
+
+    // Longer "tags" are script bodies or comments, not markup worth scanning
+    private static final int MAX_TAG_LENGTH = 2048;
+    private static final Pattern SRC = attributePattern("src");
+    private static final Pattern HREF = attributePattern("href");
+    private static final Pattern REL = attributePattern("rel");
+
+    private final URL pageUrl;
+    private final Consumer<String> listener;
+    private final int maxLinks;
+    private final Set<String> seen = new HashSet<>();
+    private final StringBuilder pendingTag = new StringBuilder();
+    private boolean inTag;
+
+    /**
+     * @param pageUrl  URL of the page, used to resolve relative links
+     * @param listener called once for each distinct absolute http link, as soon as it is found
+     * @param maxLinks stop reporting after this many links
+     */
+    public LinkExtractor(URL pageUrl, Consumer<String> listener, int maxLinks) {
+        this.pageUrl = pageUrl;
+        this.listener = listener;
+        this.maxLinks = maxLinks;
+    }
+
+    /**
+     * Scans the next chunk of the page.
+     */
+    public void feed(String chunk) {
+        if (seen.size() >= maxLinks) {
+            return;
+        }
+        for (int i = 0; i < chunk.length(); i++) {
+            char c = chunk.charAt(i);
+            if (!inTag) {
+                if (c == '<') {
+                    inTag = true;
+                    pendingTag.setLength(0);
+                }
+            } else if (c == '>') {
+                inTag = false;
+                onTag(pendingTag);
+            } else if (pendingTag.length() < MAX_TAG_LENGTH) {
+                pendingTag.append(c);
+            }
+        }
+        // Line breaks are dropped by the caller, keep attributes on separate lines apart
+        if (inTag) {
+            pendingTag.append(' ');
+        }
+    }
+
+    private void onTag(CharSequence tag) {
+        int nameEnd = 0;
+        while (nameEnd < tag.length() && !Character.isWhitespace(tag.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        String name = tag.subSequence(0, nameEnd).toString().toLowerCase(Locale.ROOT);
+        switch (name) {
+            case "img":
+            case "script":
+            case "source":
+                report(attribute(SRC, tag));
+                break;
+            case "link":
+                String rel = attribute(REL, tag);
+                if (rel != null && isSubresourceRel(rel.toLowerCase(Locale.ROOT))) {
+                    report(attribute(HREF, tag));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static boolean isSubresourceRel(String rel) {
+        return rel.contains("stylesheet") || rel.contains("icon") || rel.contains("preload");
+    }
+
+    private void report(String link) {
+        if (link == null || link.isEmpty() || link.startsWith("data:") || link.startsWith("javascript:")
+                || link.startsWith("#") || seen.size() >= maxLinks) {
+            return;
+        }
+        try {
+            URL resolved = new URL(pageUrl, link);
+            if (!resolved.getProtocol().equals("http")) {
+                return;
+            }
+            String url = resolved.getRef() == null ? resolved.toString()
+                    : resolved.toString().substring(0, resolved.toString().indexOf('#'));
+            if (seen.add(url)) {
+                listener.accept(url);
+            }
+        } catch (MalformedURLException e) {
+            // Not a link we can fetch
+        }
+    }
+
+    private static String attribute(Pattern pattern, CharSequence tag) {
+        Matcher matcher = pattern.matcher(tag);
+        if (!matcher.find()) {
+            return null;
+        }
+        for (int group = 1; group <= 3; group++) {
+            if (matcher.group(group) != null) {
+                return matcher.group(group).trim();
+            }
+        }
+        return null;
+    }
+
+    private static Pattern attributePattern(String name) {
+        return Pattern.compile("(?i)\\s" + name + "\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s\"'>]+))");
+    }
+}
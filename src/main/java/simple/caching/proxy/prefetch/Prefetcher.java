@@ -0,0 +1,172 @@
+package simple.caching.proxy.prefetch;
+
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+import simple.caching.proxy.cache.CacheHandler;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Optional background fetcher that fills the cache with the subresources of HTML pages
+ * before the browser asks for them. Work runs on a small pool of low-priority daemon threads
+ * behind a bounded queue; each host may only have a limited number of prefetches queued or running.
+ *
+ * Enabled with -Dproxy.prefetch.enabled=true. Also reads proxy.prefetch.threads (default 2),
+ * proxy.prefetch.queueSize (default 256), proxy.prefetch.perHostLimit (default 4)
+ * and proxy.prefetch.maxLinksPerPage (default 32).
+ */
+@UtilityClass
+@Slf4j
+public class Prefetcher {
+
+    // Cap on how many prefetched-but-not-yet-requested keys are remembered for the hit metric
+    private static final int MAX_TRACKED_KEYS = 10_000;
+
+    private final boolean enabled = Boolean.getBoolean("proxy.prefetch.enabled");
+    private final int perHostLimit = Integer.getInteger("proxy.prefetch.perHostLimit", 4);
+    private final int maxLinksPerPage = Integer.getInteger("proxy.prefetch.maxLinksPerPage", 32);
+
+    private final Map<String, AtomicInteger> pendingPerHost = new ConcurrentHashMap<>();
+    private final Set<String> prefetchedKeys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong hitsAfterPrefetch = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private volatile ThreadPoolExecutor executor;
+    private Consumer<String> fetcher;
+
+    /**
+     * Starts the background fetcher if prefetching is enabled.
+     *
+     * @param urlFetcher fetches a URL into the cache without a client waiting on it
+     */
+    public synchronized void start(Consumer<String> urlFetcher) {
+        if (!enabled || executor != null) {
+            return;
+        }
+        fetcher = urlFetcher;
+        int threads = Integer.getInteger("proxy.prefetch.threads", 2);
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Integer.getInteger("proxy.prefetch.queueSize", 256)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "prefetcher-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        log.debug("Prefetcher started with {} threads", threads);
+    }
+
+    public boolean isEnabled() {
+        return executor != null;
+    }
+
+    /**
+     * @return an extractor that queues the subresources of the given page as it is scanned
+     */
+    public LinkExtractor newLinkExtractor(URL pageUrl) {
+        return new LinkExtractor(pageUrl, Prefetcher::submit, maxLinksPerPage);
+    }
+
+    /**
+     * Queues a URL for prefetching unless it is blocked, already cached or being fetched, known to fail,
+     * or over its host's budget.
+     */
+    public void submit(String url) {
+        if (executor == null || CacheHandler.isBlocked(url)) {
+            return;
+        }
+        String key = CacheHandler.getCacheKey(url);
+        if (CacheHandler.isCached(key) || CacheHandler.isFetchInProgress(key)
+                || CacheHandler.getNegativeCachedStatus(key) != -1) {
+            return;
+        }
+        String host;
+        try {
+            host = new URL(url).getHost().toLowerCase();
+        } catch (MalformedURLException e) {
+            return;
+        }
+
+        AtomicInteger pending = pendingPerHost.computeIfAbsent(host, h -> new AtomicInteger());
+        if (pending.incrementAndGet() > perHostLimit) {
+            pending.decrementAndGet();
+            skipped.incrementAndGet();
+            return;
+        }
+        try {
+            executor.execute(() -> fetch(url, key, pending));
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            skipped.incrementAndGet();
+        }
+    }
+
+    private void fetch(String url, String key, AtomicInteger pending) {
+        try {
+            // The page may have been requested by the browser while this was queued
+            if (CacheHandler.isCached(key) || CacheHandler.isFetchInProgress(key)) {
+                skipped.incrementAndGet();
+                return;
+            }
+            fetcher.accept(url);
+            if (CacheHandler.isCached(key)) {
+                prefetched.incrementAndGet();
+                if (prefetchedKeys.size() < MAX_TRACKED_KEYS) {
+                    prefetchedKeys.add(key);
+                }
+            } else {
+                failed.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            log.debug("Prefetch of {} failed", url, e);
+        } finally {
+            pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * Called on every cache hit; counts the first hit on each prefetched key.
+     */
+    public void recordHit(String key) {
+        if (!prefetchedKeys.isEmpty() && prefetchedKeys.remove(key)) {
+            hitsAfterPrefetch.incrementAndGet();
+        }
+    }
+
+    public long getPrefetchedCount() {
+        return prefetched.get();
+    }
+
+    public long getHitsAfterPrefetchCount() {
+        return hitsAfterPrefetch.get();
+    }
+
+    public void printStats() {
+        log.debug("Prefetch stats: prefetched {}, hit after prefetch {}, skipped {}, failed {}",
+                prefetched.get(), hitsAfterPrefetch.get(), skipped.get(), failed.get());
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package simple.caching.proxy.upstream;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Admits upstream fetches so that no single origin can monopolise the proxy.
+ * <p>
+ * At most {@code maxConcurrent} fetches run at once, and at most {@code perHostConcurrency} of them per host.
+ * Waiting fetches are queued per host. When a slot frees up, the host with the lowest weighted virtual time
+ * goes next, so hosts share slots in proportion to their weight however many requests each has queued.
+ * Within a host the earliest deadline wins. Fetches expected to be small get a short deadline, so they overtake
+ * large downloads. Across hosts, a fetch past its deadline may go before the fairest host only if its own host
+ * is less than one grant of virtual time ahead of it; it is charged as usual, so deadlines can reorder hosts
+ * a little but never change their shares. Each host can also be capped in bytes per second.
+ */
+public class FairScheduler {
+
+    // Idle host entries are only kept for their size estimate; drop them once there are this many
+    private static final int MAX_HOSTS = 4096;
+
+    private final int maxConcurrent;
+    private final int perHostConcurrency;
+    private final double perHostBytesPerSecond;
+    private final long smallObjectBytes;
+    private final long smallDeadlineNanos;
+    private final long largeDeadlineNanos;
+    private final Map<String, Double> weights;
+    private final LongSupplier nanoClock;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, HostQueue> hosts = new HashMap<>();
+    private int active;
+    private long sequence;
+
+    /**
+     * @param perHostBytesPerSecond bandwidth cap per host, or 0 for none
+     * @param smallObjectBytes      fetches expected to be at most this size get the small deadline
+     * @param weights               relative share per host; hosts not listed have weight 1
+     */
+    public FairScheduler(int maxConcurrent, int perHostConcurrency, double perHostBytesPerSecond,
+                         long smallObjectBytes, long smallDeadlineMillis, long largeDeadlineMillis,
+                         Map<String, Double> weights, LongSupplier nanoClock) {
+        this.maxConcurrent = maxConcurrent;
+        this.perHostConcurrency = perHostConcurrency;
+        this.perHostBytesPerSecond = perHostBytesPerSecond;
+        this.smallObjectBytes = smallObjectBytes;
+        this.smallDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(smallDeadlineMillis);
+        this.largeDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(largeDeadlineMillis);
+        this.weights = weights;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Waits for a slot to fetch from the host.
+     *
+     * @param expectedBytes size estimate, or -1 to use the host's recent average
+     * @param background    true for speculative work that should yield to client requests
+     * @return the permit, which must be released, or null if none was granted within {@code maxWaitMillis}
+     */
+    public Permit acquire(String host, long expectedBytes, boolean background, long maxWaitMillis)
+            throws InterruptedException {
+        lock.lock();
+        try {
+            if (hosts.size() >= MAX_HOSTS) {
+                hosts.values().removeIf(idle -> idle.active == 0 && idle.waiting.isEmpty());
+            }
+            HostQueue hostQueue = hosts.computeIfAbsent(host, HostQueue::new);
+            long now = nanoClock.getAsLong();
+            long size = expectedBytes >= 0 ? expectedBytes : hostQueue.averageBytes;
+            long deadline = now + (!background && size <= smallObjectBytes ? smallDeadlineNanos : largeDeadlineNanos);
+            Waiter waiter = new Waiter(hostQueue, deadline, sequence++, lock.newCondition());
+
+            if (hostQueue.waiting.isEmpty() && hostQueue.active == 0) {
+                // A host that was idle must not come back with credit saved up from its idle time
+                hostQueue.virtualTime = Math.max(hostQueue.virtualTime, minimumVirtualTime());
+            }
+            hostQueue.waiting.add(waiter);
+            dispatch();
+
+            long remaining = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            while (!waiter.granted) {
+                if (remaining <= 0) {
+                    hostQueue.waiting.remove(waiter);
+                    return null;
+                }
+                try {
+                    remaining = waiter.condition.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    abandon(waiter);
+                    throw e;
+                }
+            }
+            return new Permit(hostQueue);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getActiveCount() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Withdraws an interrupted waiter. If it was granted a slot in the meantime, the slot is handed on.
+     */
+    private void abandon(Waiter waiter) {
+        if (waiter.granted) {
+            release(waiter.hostQueue, 0);
+        } else {
+            waiter.hostQueue.waiting.remove(waiter);
+        }
+    }
+
+    private void dispatch() {
+        while (active < maxConcurrent) {
+            Waiter next = pickNext();
+            if (next == null) {
+                return;
+            }
+            HostQueue hostQueue = next.hostQueue;
+            hostQueue.waiting.remove(next);
+            hostQueue.active++;
+            hostQueue.virtualTime += 1.0 / hostQueue.weight;
+            active++;
+            next.granted = true;
+            next.condition.signal();
+        }
+    }
+
+    private Waiter pickNext() {
+        Waiter fairest = null;
+        for (HostQueue hostQueue : hosts.values()) {
+            Waiter head = eligibleHead(hostQueue);
+            if (head != null && (fairest == null || hostQueue.virtualTime < fairest.hostQueue.virtualTime
+                    || (hostQueue.virtualTime == fairest.hostQueue.virtualTime && head.compareTo(fairest) < 0))) {
+                fairest = head;
+            }
+        }
+        if (fairest == null) {
+            return null;
+        }
+
+        // Under a sustained backlog most small fetches are overdue, so overtaking is limited to hosts
+        // within one grant of the fairest one; otherwise dispatch would turn into FIFO across hosts
+        long now = nanoClock.getAsLong();
+        double overtakeLimit = fairest.hostQueue.virtualTime + 1.0;
+        Waiter overdue = null;
+        for (HostQueue hostQueue : hosts.values()) {
+            Waiter head = eligibleHead(hostQueue);
+            if (head != null && head.deadline <= now && hostQueue.virtualTime < overtakeLimit
+                    && (overdue == null || head.compareTo(overdue) < 0)) {
+                overdue = head;
+            }
+        }
+        return overdue != null ? overdue : fairest;
+    }
+
+    private Waiter eligibleHead(HostQueue hostQueue) {
+        return hostQueue.active >= perHostConcurrency ? null : hostQueue.waiting.peek();
+    }
+
+    private double minimumVirtualTime() {
+        double minimum = Double.MAX_VALUE;
+        for (HostQueue hostQueue : hosts.values()) {
+            if (hostQueue.active > 0 || !hostQueue.waiting.isEmpty()) {
+                minimum = Math.min(minimum, hostQueue.virtualTime);
+            }
+        }
+        return minimum == Double.MAX_VALUE ? 0 : minimum;
+    }
+
+    private void release(HostQueue hostQueue, long bytes) {
+        lock.lock();
+        try {
+            active--;
+            hostQueue.active--;
+            if (bytes > 0) {
+                // Exponentially weighted so the estimate follows what the host serves now
+                hostQueue.averageBytes = hostQueue.averageBytes == 0 ? bytes : (hostQueue.averageBytes * 7 + bytes) / 8;
+            }
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A granted slot for one upstream fetch.
+     */
+    public class Permit {
+
+        private final HostQueue hostQueue;
+        private boolean released;
+
+        private Permit(HostQueue hostQueue) {
+            this.hostQueue = hostQueue;
+        }
+
+        /**
+         * Blocks as needed to keep the host within its bandwidth cap. Call with each chunk read from the origin.
+         */
+        public void throttle(int bytes) {
+            RateLimiter rateLimiter = hostQueue.rateLimiter;
+            if (rateLimiter != null && bytes > 0) {
+                rateLimiter.acquire(bytes);
+            }
+        }
+
+        /**
+         * Frees the slot for the next waiting fetch.
+         *
+         * @param bytes size of the fetched object, used to estimate the host's future fetches
+         */
+        public void release(long bytes) {
+            if (!released) {
+                released = true;
+                FairScheduler.this.release(hostQueue, bytes);
+            }
+        }
+    }
+
+    private class HostQueue {
+        final double weight;
+        final PriorityQueue<Waiter> waiting = new PriorityQueue<>();
+        final RateLimiter rateLimiter;
+        int active;
+        double virtualTime;
+        long averageBytes;
+
+        HostQueue(String host) {
+            this.weight = weights.getOrDefault(host, 1.0);
+            this.rateLimiter = perHostBytesPerSecond > 0 ? RateLimiter.create(perHostBytesPerSecond) : null;
+        }
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        final HostQueue hostQueue;
+        final long deadline;
+        final long sequence;
+        final Condition condition;
+        boolean granted;
+
+        Waiter(HostQueue hostQueue, long deadline, long sequence, Condition condition) {
+            this.hostQueue = hostQueue;
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.condition = condition;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int byDeadline = Long.compare(deadline, other.deadline);
+            return byDeadline != 0 ? byDeadline : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package simple.caching.proxy.upstream;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Origin response stream that charges every byte read against the host's bandwidth cap,
+ * and counts them so the fetch can report its size when the permit is released.
+ */
+public class ThrottledInputStream extends FilterInputStream {
+
+    private final FairScheduler.Permit permit;
+    private long count;
+
+    public ThrottledInputStream(InputStream in, FairScheduler.Permit permit) {
+        super(in);
+        this.permit = permit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            count++;
+            permit.throttle(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read = super.read(buffer, offset, length);
+        if (read > 0) {
+            count += read;
+        }
+        permit.throttle(read);
+        return read;
+    }
+
+    /**
+     * @return number of bytes read so far
+     */
+    public long getCount() {
+        return count;
+    }
+}
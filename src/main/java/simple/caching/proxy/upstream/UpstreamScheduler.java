@@ -0,0 +1,49 @@
+package simple.caching.proxy.upstream;
+
+import com.google.common.base.Splitter;
+import lombok.experimental.UtilityClass;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shared {@link FairScheduler} every origin fetch goes through.
+ *
+ * Settings are read from system properties:
+ * proxy.upstream.maxConcurrent (default 64), proxy.upstream.perHostConcurrency (default 8),
+ * proxy.upstream.perHostBytesPerSecond (default 0, unlimited), proxy.upstream.smallObjectBytes (default 64KB),
+ * proxy.upstream.smallDeadlineMs (default 50), proxy.upstream.largeDeadlineMs (default 2000),
+ * proxy.upstream.maxWaitMs (default 10000) and proxy.upstream.weights, e.g. "example.com=2,slow.com=0.5".
+ */
+@UtilityClass
+public class UpstreamScheduler {
+
+    private final long maxWaitMillis = Long.getLong("proxy.upstream.maxWaitMs", 10_000L);
+    private final FairScheduler scheduler = new FairScheduler(
+            Integer.getInteger("proxy.upstream.maxConcurrent", 64),
+            Integer.getInteger("proxy.upstream.perHostConcurrency", 8),
+            Long.getLong("proxy.upstream.perHostBytesPerSecond", 0L),
+            Long.getLong("proxy.upstream.smallObjectBytes", 64L * 1024),
+            Long.getLong("proxy.upstream.smallDeadlineMs", 50L),
+            Long.getLong("proxy.upstream.largeDeadlineMs", 2_000L),
+            parseWeights(System.getProperty("proxy.upstream.weights", "")),
+            System::nanoTime);
+
+    /**
+     * Waits for a turn to fetch from the host.
+     *
+     * @return the permit to release once the fetch is done, or null if the wait timed out
+     */
+    public FairScheduler.Permit acquire(String host, long expectedBytes, boolean background) throws InterruptedException {
+        return scheduler.acquire(host, expectedBytes, background, maxWaitMillis);
+    }
+
+    private Map<String, Double> parseWeights(String weights) {
+        Map<String, Double> parsed = new HashMap<>();
+        for (Map.Entry<String, String> entry : Splitter.on(',').trimResults().omitEmptyStrings()
+                .withKeyValueSeparator(Splitter.on('=').trimResults()).split(weights).entrySet()) {
+            parsed.put(entry.getKey().toLowerCase(), Double.parseDouble(entry.getValue()));
+        }
+        return parsed;
+    }
+}
@@ -9,6 +9,11 @@ import org.testng.Assert;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @Slf4j
 class CacheHandlerTest {
@@ -42,6 +47,49 @@ class CacheHandlerTest {
         CacheHandler.addCachedPage("urlString", new File("cached_sites.txt"));
     }
 
+    @Test
+    void testGetCacheKey() {
+        Assertions.assertEquals("http://google.com/?a=1&b=2", CacheHandler.getCacheKey("http://Google.com:80?b=2&utm_source=x&a=1"));
+    }
+
+    @Test
+    void testAddCachedVariant() {
+        Map<String, String> english = Collections.singletonMap("accept-language", "en");
+        CacheHandler.addCachedVariant("http://variant.com/", Collections.singletonList("accept-language"),
+                english, new File("cached_sites.txt"));
+        Assertions.assertNotNull(CacheHandler.getCachedPage("http://variant.com/", english));
+        Assertions.assertNull(CacheHandler.getCachedPage("http://variant.com/",
+                Collections.singletonMap("accept-language", "fr")));
+        Assertions.assertEquals(1, CacheHandler.getCachedFiles("http://variant.com/").size());
+        Assertions.assertTrue(CacheHandler.isCached("http://variant.com/"));
+    }
+
+    @Test
+    void testSnapshotKeysAreHotAfterRestart() throws IOException {
+        File snapshot = new File("cache_popularity.txt");
+        Files.write(snapshot.toPath(), Collections.singletonList("http://hot.com/big.iso"), StandardCharsets.UTF_8);
+        try {
+            CacheHandler.loadPopularFiles();
+            Assertions.assertTrue(CacheHandler.isHot("http://hot.com/big.iso", 3));
+            Assertions.assertFalse(CacheHandler.isHot("http://cold.com/big.iso", 3));
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    @Test
+    void testOneFetchPerKey() throws Exception {
+        Assertions.assertNull(CacheHandler.startFetch("http://fetch.com/"));
+        CompletableFuture<File> pending = CacheHandler.startFetch("http://fetch.com/");
+        Assertions.assertNotNull(pending);
+        Assertions.assertTrue(CacheHandler.isFetchInProgress("http://fetch.com/"));
+
+        File cached = new File("cached_sites.txt");
+        CacheHandler.finishFetch("http://fetch.com/", cached);
+        Assertions.assertSame(cached, pending.get());
+        Assertions.assertFalse(CacheHandler.isFetchInProgress("http://fetch.com/"));
+    }
+
     @Test
     void testIsBlocked() {
         log.warn("something to print");
@@ -0,0 +1,43 @@
+package simple.caching.proxy.cache;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+class CacheKeyNormalizerTest {
+
+    private CacheKeyNormalizer normalizer;
+
+    @BeforeEach
+    void setUp() {
+        normalizer = new CacheKeyNormalizer(Arrays.asList("utm_*", "gclid"), true);
+    }
+
+    @Test
+    void testCanonicalHostAndPort() {
+        Assertions.assertEquals("http://example.com/a/B.html", normalizer.normalize("HTTP://Example.COM:80/a/B.html"));
+        Assertions.assertEquals("https://example.com/", normalizer.normalize("https://example.com.:443"));
+        Assertions.assertEquals("http://example.com:8080/", normalizer.normalize("http://example.com:8080/#top"));
+    }
+
+    @Test
+    void testQueryParametersIgnoredAndSorted() {
+        Assertions.assertEquals("http://example.com/p?a=1&b=2",
+                normalizer.normalize("http://example.com/p?b=2&utm_source=x&a=1&gclid=y"));
+        Assertions.assertEquals("http://example.com/p", normalizer.normalize("http://example.com/p?UTM_medium=z"));
+    }
+
+    @Test
+    void testUnsortedKeepsOrder() {
+        CacheKeyNormalizer unsorted = new CacheKeyNormalizer(Arrays.asList(""), false);
+        Assertions.assertEquals("http://example.com/p?b=2&a=1", unsorted.normalize("http://example.com/p?b=2&a=1"));
+    }
+
+    @Test
+    void testRewriteRule() {
+        normalizer.addRewriteRule("^http://cdn[0-9]+\\.example\\.com/", "http://cdn.example.com/");
+        Assertions.assertEquals("http://cdn.example.com/x.js", normalizer.normalize("http://CDN3.example.com/x.js"));
+    }
+}
@@ -0,0 +1,54 @@
+package simple.caching.proxy.cache;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+class CachePopularityTest {
+
+    @Test
+    void testHottestOrderedByCount() {
+        CachePopularity popularity = new CachePopularity();
+        popularity.record("a");
+        popularity.record("b");
+        popularity.record("b");
+        popularity.record("c");
+        popularity.record("c");
+        popularity.record("c");
+
+        Assertions.assertEquals(Arrays.asList("c", "b"), popularity.hottest(2));
+    }
+
+    @Test
+    void testDecayForgetsColdKeys() {
+        CachePopularity popularity = new CachePopularity();
+        popularity.record("cold");
+        popularity.record("hot");
+        popularity.record("hot");
+
+        popularity.decay();
+
+        Assertions.assertEquals(0, popularity.getCount("cold"));
+        Assertions.assertEquals(1, popularity.getCount("hot"));
+        Assertions.assertEquals(Collections.singletonList("hot"), popularity.hottest(10));
+    }
+
+    @Test
+    void testSnapshotRoundTrip() throws IOException {
+        File snapshot = File.createTempFile("popularity", ".txt");
+        snapshot.deleteOnExit();
+        CachePopularity popularity = new CachePopularity();
+        popularity.record("http://a.com/");
+        popularity.record("http://b.com/");
+        popularity.record("http://b.com/");
+
+        popularity.writeSnapshot(snapshot, 10);
+
+        Assertions.assertEquals(Arrays.asList("http://b.com/", "http://a.com/"), CachePopularity.readSnapshot(snapshot));
+        Assertions.assertTrue(CachePopularity.readSnapshot(new File(snapshot.getPath() + ".missing")).isEmpty());
+    }
+}
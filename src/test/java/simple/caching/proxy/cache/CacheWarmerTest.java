@@ -0,0 +1,37 @@
+package simple.caching.proxy.cache;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+class CacheWarmerTest {
+
+    @Test
+    void testWarmerRespectsBudget() throws IOException {
+        File small = File.createTempFile("warm", ".html");
+        File large = File.createTempFile("warm", ".html");
+        small.deleteOnExit();
+        large.deleteOnExit();
+        Files.write(small.toPath(), new byte[100]);
+        Files.write(large.toPath(), new byte[1000]);
+
+        CacheWarmer warmer = new CacheWarmer(1, 500);
+        warmer.warm(Arrays.asList(small, large));
+
+        Assertions.assertEquals(1, warmer.getWarmedFiles());
+        Assertions.assertEquals(100, warmer.getWarmedBytes());
+    }
+
+    @Test
+    void testWarmerSkipsMissingFiles() {
+        CacheWarmer warmer = new CacheWarmer(2, 500);
+        warmer.warm(Arrays.asList(new File("does-not-exist.html")));
+
+        Assertions.assertEquals(0, warmer.getWarmedFiles());
+        Assertions.assertEquals(0, warmer.getWarmedBytes());
+    }
+}
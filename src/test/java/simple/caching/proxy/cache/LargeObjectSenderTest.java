@@ -0,0 +1,57 @@
+package simple.caching.proxy.cache;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+class LargeObjectSenderTest {
+
+    private File file;
+    private byte[] content;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // Not a multiple of the chunk or block size, so the last chunk is partial
+        content = new byte[300_001];
+        new Random(42).nextBytes(content);
+        file = File.createTempFile("large", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+    }
+
+    @Test
+    void testSendMapped() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long sent = new LargeObjectSender(64 * 1024).send(file, out, false);
+
+        Assertions.assertEquals(content.length, sent);
+        Assertions.assertTrue(Arrays.equals(content, out.toByteArray()));
+    }
+
+    @Test
+    void testSendOneShot() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long sent = new LargeObjectSender(64 * 1024).send(file, out, true);
+
+        Assertions.assertEquals(content.length, sent);
+        Assertions.assertTrue(Arrays.equals(content, out.toByteArray()));
+    }
+
+    @Test
+    void testUnalignedChunkSizeReusesBuffers() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long sent = new LargeObjectSender(100_000).send(file, out, i % 2 == 0);
+
+            Assertions.assertEquals(content.length, sent);
+            Assertions.assertTrue(Arrays.equals(content, out.toByteArray()));
+        }
+    }
+}
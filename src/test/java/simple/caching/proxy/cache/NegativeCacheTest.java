@@ -0,0 +1,81 @@
+package simple.caching.proxy.cache;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+class NegativeCacheTest {
+
+    private final AtomicLong now = new AtomicLong(1_000L);
+    private NegativeCache negativeCache;
+
+    @BeforeEach
+    void setUp() {
+        negativeCache = new NegativeCache(now::get, 3, 60_000L, 100);
+    }
+
+    @Test
+    void testUrlFailureExpires() {
+        negativeCache.addUrlFailure("http://a.com/x", 404, FailureClass.NOT_FOUND);
+        Assertions.assertEquals(404, negativeCache.getUrlFailure("http://a.com/x"));
+        Assertions.assertEquals(-1, negativeCache.getUrlFailure("http://a.com/y"));
+
+        now.addAndGet(FailureClass.NOT_FOUND.getTtlMillis());
+        Assertions.assertEquals(-1, negativeCache.getUrlFailure("http://a.com/x"));
+    }
+
+    @Test
+    void testForStatusCode() {
+        Assertions.assertEquals(FailureClass.NOT_FOUND, FailureClass.forStatusCode(410));
+        Assertions.assertEquals(FailureClass.SERVER_ERROR, FailureClass.forStatusCode(503));
+        Assertions.assertNull(FailureClass.forStatusCode(200));
+    }
+
+    @Test
+    void testHostFailureBeforeBreakerTrips() {
+        negativeCache.addHostFailure("a.com:80", FailureClass.TIMEOUT);
+        Assertions.assertEquals(504, negativeCache.getHostFailure("a.com:80"));
+        Assertions.assertFalse(negativeCache.isBreakerOpen("a.com:80"));
+
+        now.addAndGet(FailureClass.TIMEOUT.getTtlMillis());
+        Assertions.assertEquals(-1, negativeCache.getHostFailure("a.com:80"));
+    }
+
+    @Test
+    void testBreakerHalfOpenAllowsSingleProbe() {
+        for (int i = 0; i < 3; i++) {
+            negativeCache.addHostFailure("a.com:443", FailureClass.CONNECT_FAILURE);
+        }
+        Assertions.assertTrue(negativeCache.isBreakerOpen("a.com:443"));
+        Assertions.assertEquals(502, negativeCache.getHostFailure("a.com:443"));
+
+        now.addAndGet(60_000L);
+        Assertions.assertEquals(-1, negativeCache.getHostFailure("a.com:443"));
+        Assertions.assertEquals(502, negativeCache.getHostFailure("a.com:443"));
+
+        negativeCache.addHostSuccess("a.com:443");
+        Assertions.assertFalse(negativeCache.isBreakerOpen("a.com:443"));
+        Assertions.assertEquals(-1, negativeCache.getHostFailure("a.com:443"));
+    }
+
+    @Test
+    void testEntriesExpireWithoutLookup() {
+        negativeCache.addUrlFailure("http://a.com/x", 404, FailureClass.NOT_FOUND);
+        negativeCache.addHostFailure("a.com:80", FailureClass.TIMEOUT);
+        Assertions.assertEquals(2, negativeCache.size());
+
+        now.addAndGet(10 * 60_000L);
+        Assertions.assertEquals(0, negativeCache.size());
+    }
+
+    @Test
+    void testUrlFailuresAreBounded() {
+        for (int i = 0; i < 1000; i++) {
+            negativeCache.addUrlFailure("http://a.com/" + i, 404, FailureClass.NOT_FOUND);
+        }
+        Assertions.assertTrue(negativeCache.size() <= 100);
+        Assertions.assertEquals(404, negativeCache.getUrlFailure("http://a.com/999"));
+    }
+}
@@ -0,0 +1,43 @@
+package simple.caching.proxy.log;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class AccessLogRingBufferTest {
+
+    @Test
+    void testCapacityRoundedToPowerOfTwo() {
+        Assertions.assertEquals(8, new AccessLogRingBuffer(5).getCapacity());
+        Assertions.assertEquals(8, new AccessLogRingBuffer(8).getCapacity());
+    }
+
+    @Test
+    void testDrainInPublishOrder() {
+        AccessLogRingBuffer ringBuffer = new AccessLogRingBuffer(4);
+        ringBuffer.offer(1L, "GET", "http://a.com/", CacheStatus.HIT, 10, 100);
+        ringBuffer.offer(2L, "CONNECT", "http://b.com:443", CacheStatus.TUNNEL, 20, 200);
+
+        List<String> drained = new ArrayList<>();
+        int count = ringBuffer.drain(new AccessLogRecord(),
+                r -> drained.add(r.getMethod() + " " + r.getStatus() + " " + r.getBytes()), 10);
+
+        Assertions.assertEquals(2, count);
+        Assertions.assertEquals("GET HIT 10", drained.get(0));
+        Assertions.assertEquals("CONNECT TUNNEL 20", drained.get(1));
+    }
+
+    @Test
+    void testOfferDropsWhenFull() {
+        AccessLogRingBuffer ringBuffer = new AccessLogRingBuffer(2);
+        Assertions.assertTrue(ringBuffer.offer(1L, "GET", "u", CacheStatus.MISS, 0, 0));
+        Assertions.assertTrue(ringBuffer.offer(2L, "GET", "u", CacheStatus.MISS, 0, 0));
+        Assertions.assertFalse(ringBuffer.offer(3L, "GET", "u", CacheStatus.MISS, 0, 0));
+        Assertions.assertEquals(1, ringBuffer.getDroppedCount());
+
+        ringBuffer.drain(new AccessLogRecord(), r -> { }, 1);
+        Assertions.assertTrue(ringBuffer.offer(4L, "GET", "u", CacheStatus.MISS, 0, 0));
+    }
+}
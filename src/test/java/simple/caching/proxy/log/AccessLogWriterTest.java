@@ -0,0 +1,20 @@
+package simple.caching.proxy.log;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class AccessLogWriterTest {
+
+    @Test
+    void testHostOf() {
+        Assertions.assertEquals("www.example.com", AccessLogWriter.hostOf("http://www.example.com:8080/a?b"));
+        Assertions.assertEquals("example.com", AccessLogWriter.hostOf("example.com/index.html"));
+    }
+
+    @Test
+    void testAppendEscaped() {
+        StringBuilder out = new StringBuilder();
+        AccessLogWriter.appendEscaped(out, "GE\"T\\\n\u0001");
+        Assertions.assertEquals("GE\\\"T\\\\\\u000a\\u0001", out.toString());
+    }
+}
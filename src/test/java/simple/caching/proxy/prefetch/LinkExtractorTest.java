@@ -0,0 +1,49 @@
+package simple.caching.proxy.prefetch;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class LinkExtractorTest {
+
+    private final List<String> links = new ArrayList<>();
+
+    private LinkExtractor newExtractor(int maxLinks) throws MalformedURLException {
+        return new LinkExtractor(new URL("http://example.com/dir/page.html"), links::add, maxLinks);
+    }
+
+    @Test
+    void testExtractsSubresources() throws MalformedURLException {
+        LinkExtractor extractor = newExtractor(10);
+        extractor.feed("<html><head><link rel=\"stylesheet\" href=\"/css/site.css\"><link rel=canonical href=\"/other\">");
+        extractor.feed("<script src='app.js'></script><a href=\"/next.html\">next</a>");
+        extractor.feed("<img alt=\"x\" src=\"http://img.example.com/a.png#frag\"><img src=\"data:image/png;base64,AA\">");
+
+        Assertions.assertEquals(Arrays.asList(
+                "http://example.com/css/site.css",
+                "http://example.com/dir/app.js",
+                "http://img.example.com/a.png"), links);
+    }
+
+    @Test
+    void testTagSplitAcrossLines() throws MalformedURLException {
+        LinkExtractor extractor = newExtractor(10);
+        extractor.feed("<img class=\"logo\"");
+        extractor.feed("src=\"logo.gif\">");
+
+        Assertions.assertEquals(Arrays.asList("http://example.com/dir/logo.gif"), links);
+    }
+
+    @Test
+    void testDuplicatesAndLimit() throws MalformedURLException {
+        LinkExtractor extractor = newExtractor(2);
+        extractor.feed("<img src=a.png><img src=a.png><img src=b.png><img src=c.png>");
+
+        Assertions.assertEquals(Arrays.asList("http://example.com/dir/a.png", "http://example.com/dir/b.png"), links);
+    }
+}
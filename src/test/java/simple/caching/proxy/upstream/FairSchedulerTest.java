@@ -0,0 +1,147 @@
+package simple.caching.proxy.upstream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+class FairSchedulerTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private FairScheduler newScheduler(int maxConcurrent, int perHostConcurrency) {
+        return new FairScheduler(maxConcurrent, perHostConcurrency, 0, 1024, 50, 2000,
+                Collections.emptyMap(), now::get);
+    }
+
+    @Test
+    void testPerHostConcurrencyCap() throws InterruptedException {
+        FairScheduler scheduler = newScheduler(10, 1);
+        FairScheduler.Permit first = scheduler.acquire("slow.com", -1, false, 100);
+        Assertions.assertNotNull(first);
+        Assertions.assertNull(scheduler.acquire("slow.com", -1, false, 10));
+        Assertions.assertNotNull(scheduler.acquire("fast.com", -1, false, 10));
+
+        first.release(0);
+        Assertions.assertNotNull(scheduler.acquire("slow.com", -1, false, 10));
+    }
+
+    @Test
+    void testInterruptedWaiterDoesNotLeakSlot() throws InterruptedException {
+        FairScheduler scheduler = newScheduler(1, 10);
+        FairScheduler.Permit holder = scheduler.acquire("a.com", -1, false, 100);
+        AtomicBoolean interrupted = new AtomicBoolean();
+
+        Thread waiter = new Thread(() -> {
+            try {
+                scheduler.acquire("b.com", -1, false, 5000);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+        });
+        waiter.start();
+        awaitQueued(waiter);
+        waiter.interrupt();
+        waiter.join(1000);
+        Assertions.assertTrue(interrupted.get());
+
+        holder.release(0);
+        Assertions.assertEquals(0, scheduler.getActiveCount());
+        FairScheduler.Permit next = scheduler.acquire("c.com", -1, false, 100);
+        Assertions.assertNotNull(next);
+        Assertions.assertEquals(1, scheduler.getActiveCount());
+    }
+
+    @Test
+    void testBackloggedHostsTakeTurns() throws InterruptedException {
+        FairScheduler scheduler = newScheduler(1, 10);
+        FairScheduler.Permit holder = scheduler.acquire("busy.com", -1, false, 100);
+        List<String> order = new CopyOnWriteArrayList<>();
+
+        // busy.com queues two fetches before other.com queues one
+        Thread busy1 = waitInBackground(scheduler, "busy.com", order);
+        awaitQueued(busy1);
+        Thread busy2 = waitInBackground(scheduler, "busy.com", order);
+        awaitQueued(busy2);
+        Thread other = waitInBackground(scheduler, "other.com", order);
+        awaitQueued(other);
+
+        holder.release(0);
+        busy1.join(1000);
+        busy2.join(1000);
+        other.join(1000);
+        Assertions.assertEquals(Arrays.asList("busy.com", "other.com", "busy.com"), order);
+    }
+
+    @Test
+    void testOverdueFetchesKeepHostsTakingTurns() throws InterruptedException {
+        FairScheduler scheduler = newScheduler(1, 10);
+        FairScheduler.Permit holder = scheduler.acquire("flood.com", -1, false, 100);
+        List<String> order = new CopyOnWriteArrayList<>();
+
+        // flood.com queues three small fetches before other.com queues one
+        for (int i = 0; i < 3; i++) {
+            awaitQueued(waitInBackground(scheduler, "flood.com", order));
+        }
+        Thread other = waitInBackground(scheduler, "other.com", order);
+        awaitQueued(other);
+
+        // Every waiter is now past its deadline, as under a sustained backlog
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        holder.release(0);
+        other.join(1000);
+        while (order.size() < 4) {
+            Thread.sleep(1);
+        }
+        Assertions.assertEquals(Arrays.asList("flood.com", "other.com", "flood.com", "flood.com"), order);
+    }
+
+    @Test
+    void testOverdueSmallFetchOvertakes() throws InterruptedException {
+        FairScheduler scheduler = newScheduler(1, 10);
+        FairScheduler.Permit holder = scheduler.acquire("a.com", -1, false, 100);
+        List<String> order = new CopyOnWriteArrayList<>();
+
+        Thread large = new Thread(() -> acquireAndRelease(scheduler, "b.com", 1_000_000, order));
+        large.start();
+        awaitQueued(large);
+        Thread small = new Thread(() -> acquireAndRelease(scheduler, "a.com", 10, order));
+        small.start();
+        awaitQueued(small);
+
+        // Past the small deadline but not the large one
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        holder.release(0);
+        large.join(1000);
+        small.join(1000);
+        Assertions.assertEquals("a.com", order.get(0));
+    }
+
+    private Thread waitInBackground(FairScheduler scheduler, String host, List<String> order) {
+        Thread thread = new Thread(() -> acquireAndRelease(scheduler, host, -1, order));
+        thread.start();
+        return thread;
+    }
+
+    private void acquireAndRelease(FairScheduler scheduler, String host, long expectedBytes, List<String> order) {
+        try {
+            FairScheduler.Permit permit = scheduler.acquire(host, expectedBytes, false, 5000);
+            order.add(host);
+            permit.release(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void awaitQueued(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package simple.caching.proxy.upstream;
+
+import com.google.common.io.ByteStreams;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+class ThrottledInputStreamTest {
+
+    @Test
+    void testReadsArePacedByHostCap() throws IOException, InterruptedException {
+        FairScheduler scheduler = new FairScheduler(1, 1, 100_000, 1024, 50, 2000,
+                Collections.emptyMap(), System::nanoTime);
+        FairScheduler.Permit permit = scheduler.acquire("img.com", -1, false, 100);
+
+        long start = System.nanoTime();
+        byte[] read;
+        long counted;
+        try (ThrottledInputStream in = new ThrottledInputStream(new ByteArrayInputStream(new byte[30_000]), permit)) {
+            read = ByteStreams.toByteArray(in);
+            counted = in.getCount();
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        permit.release(read.length);
+
+        Assertions.assertEquals(30_000, read.length);
+        Assertions.assertEquals(30_000, counted);
+        // The first chunk is free, the remaining ~20KB cost ~200ms at 100KB/s
+        Assertions.assertTrue(elapsedMillis >= 150, "took " + elapsedMillis + "ms");
+    }
+}